@@ -0,0 +1,50 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.java.wob.bench;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the benchmarks whose names match the first argument, or all of them, reporting throughput
+ * and, through the gc profiler, bytes allocated per operation. Results are also written to
+ * jmh-result.json for comparing runs.
+ */
+public class BenchmarkMain {
+
+  public static void main(String[] args) throws RunnerException {
+    ChainedOptionsBuilder options = new OptionsBuilder()
+        .include(args.length > 0 ? args[0] : BenchmarkMain.class.getPackage().getName())
+        .mode(Mode.Throughput)
+        .timeUnit(TimeUnit.SECONDS)
+        .warmupIterations(5)
+        .measurementIterations(5)
+        .forks(1)
+        .addProfiler(GCProfiler.class)
+        .resultFormat(ResultFormatType.JSON)
+        .result("jmh-result.json");
+    // The forked JVMs need the key for JwtBenchmark
+    if (System.getProperty("PRIVATE_KEY") != null) {
+      options.jvmArgsAppend("-DPRIVATE_KEY=" + System.getProperty("PRIVATE_KEY"));
+    }
+    new Runner(options.build()).run();
+  }
+}
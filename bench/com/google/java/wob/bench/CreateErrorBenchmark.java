@@ -0,0 +1,34 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.java.wob.bench;
+
+import com.google.java.wob.ClientMethods;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * ClientMethods.createError with the default and a custom message.
+ */
+public class CreateErrorBenchmark {
+
+  @Benchmark
+  public String defaultError() {
+    return ClientMethods.createError(null);
+  }
+
+  @Benchmark
+  public String customError() {
+    return ClientMethods.createError("Something went wrong, please refresh and try again");
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob.bench;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.services.walletobjects.model.Barcode;
+import com.google.api.services.walletobjects.model.BoardingPassClass;
+import com.google.api.services.walletobjects.model.BoardingPassObject;
+import com.google.api.services.walletobjects.model.GenericClass;
+import com.google.api.services.walletobjects.model.GenericObject;
+import com.google.api.services.walletobjects.model.Image;
+import com.google.api.services.walletobjects.model.LatLongPoint;
+import com.google.api.services.walletobjects.model.LoyaltyClass;
+import com.google.api.services.walletobjects.model.LoyaltyObject;
+import com.google.api.services.walletobjects.model.LoyaltyPoints;
+import com.google.api.services.walletobjects.model.LoyaltyPointsBalance;
+import com.google.api.services.walletobjects.model.OfferClass;
+import com.google.api.services.walletobjects.model.OfferObject;
+import com.google.api.services.walletobjects.model.PassengerName;
+import com.google.api.services.walletobjects.model.RenderSpec;
+import com.google.api.services.walletobjects.model.Uri;
+import com.google.api.services.walletobjects.model.WalletObjectMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Wallet classes and objects of each vertical, filled in the way the builder UI fills them, for
+ * the benchmarks.
+ */
+final class Fixtures {
+  static final String ISSUER_ID = "2967745143868465930";
+
+  private Fixtures() {}
+
+  /**
+   * @param vertical model name, e.g. "loyaltyClass" or "boardingPassObject"
+   * @param n distinguishes the id of the resource
+   */
+  static GenericJson resource(String vertical, int n) {
+    String id = ISSUER_ID + "." + vertical + n;
+    if (vertical.equals("loyaltyClass")) {
+      return loyaltyClass(id);
+    } else if (vertical.equals("loyaltyObject")) {
+      return loyaltyObject(id);
+    } else if (vertical.equals("offerClass")) {
+      return new OfferClass().setId(id).setVersion(1L).setIssuerName("Baconrista")
+          .setTitle("20% off one cup of coffee").setProvider("Baconrista Deals")
+          .setRedemptionChannel("both")
+          .setTitleImage(image()).setRenderSpecs(renderSpecs()).setLocations(locations())
+          .setMessages(messages());
+    } else if (vertical.equals("offerObject")) {
+      return new OfferObject().setId(id).setVersion(1L).setClassId(ISSUER_ID + ".offerClass")
+          .setState("active").setBarcode(barcode()).setMessages(messages());
+    } else if (vertical.equals("genericClass")) {
+      return new GenericClass().setId(id).setVersion(1L).setIssuerName("Baconrista")
+          .setTitle("Membership").setDescription("Baconrista membership card")
+          .setTitleImage(image()).setRenderSpecs(renderSpecs()).setLocations(locations())
+          .setMessages(messages());
+    } else if (vertical.equals("genericObject")) {
+      return new GenericObject().setId(id).setVersion(1L)
+          .setClassId(ISSUER_ID + ".genericClass").setState("active").setBarcode(barcode())
+          .setMessages(messages());
+    } else if (vertical.equals("boardingPassClass")) {
+      return new BoardingPassClass().setId(id).setVersion(1L).setIssuerName("Baconrista Air")
+          .setCarrierCode("BA").setCarrierName("Baconrista Air").setFlightNumber("123")
+          .setDepartureAirportCode("SFO").setArrivalAirportCode("JFK")
+          .setCarrierLogoImage(image()).setRenderSpecs(renderSpecs()).setMessages(messages());
+    } else if (vertical.equals("boardingPassObject")) {
+      return new BoardingPassObject().setId(id).setVersion(1L)
+          .setClassId(ISSUER_ID + ".boardingPassClass").setState("active")
+          .setPassengerName(new PassengerName().setFirst("John").setLast("Doe"))
+          .setSeat("12A").setSeatClass("economy").setRecordLocator("ABC123")
+          .setBarcode(barcode());
+    }
+    throw new IllegalArgumentException("Unknown vertical " + vertical);
+  }
+
+  /**
+   * @return n loyalty objects with distinct ids
+   */
+  static List<GenericJson> loyaltyObjects(int n) {
+    List<GenericJson> objects = new ArrayList<GenericJson>(n);
+    for (int i = 0; i < n; i++) {
+      objects.add(loyaltyObject(ISSUER_ID + ".loyaltyObject" + i));
+    }
+    return objects;
+  }
+
+  /**
+   * @return n classes, a third each of offer, loyalty and generic, as /classlist returns them
+   */
+  static List<GenericJson> classList(int n) {
+    List<GenericJson> classes = new ArrayList<GenericJson>(n);
+    String[] verticals = {"offerClass", "loyaltyClass", "genericClass"};
+    for (int i = 0; i < n; i++) {
+      classes.add(resource(verticals[i % verticals.length], i));
+    }
+    return classes;
+  }
+
+  static LoyaltyObject loyaltyObject(String id) {
+    return new LoyaltyObject().setId(id).setVersion(1L).setClassId(ISSUER_ID + ".loyaltyClass")
+        .setState("active").setAccountId("1234567890").setAccountName("Jane Doe")
+        .setBarcode(barcode()).setMessages(messages())
+        .setLoyaltyPoints(new LoyaltyPoints().setLabel("Points")
+            .setBalance(new LoyaltyPointsBalance().setString("500")));
+  }
+
+  private static LoyaltyClass loyaltyClass(String id) {
+    return new LoyaltyClass().setId(id).setVersion(1L).setIssuerName("Baconrista")
+        .setProgramName("Baconrista Rewards").setProgramLogo(image())
+        .setAccountIdLabel("Member Id").setAccountNameLabel("Member Name")
+        .setRewardsTier("Gold").setRewardsTierLabel("Tier")
+        .setRenderSpecs(renderSpecs()).setLocations(locations()).setMessages(messages());
+  }
+
+  private static Image image() {
+    return new Image().setSourceUri(
+        new Uri().setUri("http://www.google.com/landing/chrome/ugc/chrome-icon.jpg"));
+  }
+
+  private static Barcode barcode() {
+    return new Barcode().setType("qrCode").setValue("28343E3").setAlternateText("12345")
+        .setLabel("User Id");
+  }
+
+  private static List<RenderSpec> renderSpecs() {
+    return Arrays.asList(
+        new RenderSpec().setViewName("g_list").setTemplateFamily("1.loyaltyCard1_list"),
+        new RenderSpec().setViewName("g_expanded").setTemplateFamily("1.loyaltyCard1_expanded"));
+  }
+
+  private static List<LatLongPoint> locations() {
+    return Arrays.asList(new LatLongPoint().setLatitude(37.422601).setLongitude(-122.085286),
+        new LatLongPoint().setLatitude(37.429379).setLongitude(-122.122730));
+  }
+
+  private static List<WalletObjectMessage> messages() {
+    return Collections.singletonList(new WalletObjectMessage().setHeader("Welcome")
+        .setBody("Welcome to Baconrista Rewards!").setActionUri(
+            new Uri().setUri("http://www.google.com")));
+  }
+}
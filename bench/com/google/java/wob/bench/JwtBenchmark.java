@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.java.wob.bench;
+
+import com.google.api.client.json.GenericJson;
+import com.google.java.wob.utils.WobCredentials;
+import com.google.java.wob.utils.WobPayload;
+import com.google.java.wob.utils.WobUtils;
+import com.google.java.wob.webservice.WebserviceResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Save to Wallet JWTs for payloads of 1 to 500 loyalty objects, and a webservice response JWT
+ * with one object. Signing uses the PKCS12 key at the PRIVATE_KEY system property, as the
+ * servlets do.
+ */
+@State(Scope.Thread)
+public class JwtBenchmark {
+  @Param({"1", "10", "100", "500"})
+  int objects;
+
+  private final List<String> origins = Collections.singletonList("http://localhost:8888");
+  private WobUtils utils;
+  private WobPayload payload;
+  private GenericJson object;
+  private WebserviceResponse response;
+
+  @Setup
+  public void setUp() throws Exception {
+    utils = new WobUtils(credentials());
+    payload = new WobPayload();
+    for (GenericJson loyaltyObject : Fixtures.loyaltyObjects(objects)) {
+      payload.addObject(loyaltyObject);
+    }
+    object = Fixtures.loyaltyObject(Fixtures.ISSUER_ID + ".linked");
+    response = new WebserviceResponse("Welcome to Baconrista Rewards!", "approved");
+  }
+
+  @Benchmark
+  public String generateSaveJwt() throws Exception {
+    return utils.generateSaveJwt(payload, origins);
+  }
+
+  @Benchmark
+  public String generateWebserviceResponseJwt() throws Exception {
+    return utils.generateWebserviceResponseJwt(object, response);
+  }
+
+  static WobCredentials credentials() {
+    return new WobCredentials(System.getProperty("SERVICE_ACCOUNT_ID", "bench"),
+        System.getProperty("PRIVATE_KEY"), "Wallet Objects Benchmarks", Fixtures.ISSUER_ID);
+  }
+}
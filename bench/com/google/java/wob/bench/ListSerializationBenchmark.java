@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.java.wob.bench;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.google.java.wob.JsonResponseWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+/**
+ * Writing a class list as the list servlets used to, through toString, JsonParser and a JsonArray,
+ * against streaming it with JsonResponseWriter. Both produce the same JSON.
+ */
+@State(Scope.Thread)
+public class ListSerializationBenchmark {
+  @Param({"10", "100", "1000"})
+  int size;
+
+  private List<GenericJson> classes;
+
+  @Setup
+  public void setUp() {
+    classes = Fixtures.classList(size);
+  }
+
+  @Benchmark
+  public String gsonTree() {
+    JsonFactory jsonFactory = new GsonFactory();
+    JsonArray array = new JsonArray();
+    JsonParser parser = new JsonParser();
+    for (GenericJson resource : classes) {
+      resource.setFactory(jsonFactory);
+      array.add(parser.parse(resource.toString()));
+    }
+    StringWriter writer = new StringWriter();
+    writer.write(array.toString());
+    return writer.toString();
+  }
+
+  @Benchmark
+  public String streaming() throws IOException {
+    StringWriter writer = new StringWriter();
+    JsonResponseWriter.writeArray(writer, classes);
+    return writer.toString();
+  }
+}
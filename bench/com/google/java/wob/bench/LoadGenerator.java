@@ -0,0 +1,235 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.java.wob.bench;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.UrlEncodedContent;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.java.wob.utils.WobMetrics.Histogram;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the servlets at a fixed rate and reports the latency distribution of each endpoint.
+ * Requests are started on schedule whether or not earlier ones have finished, and latency is
+ * measured from the scheduled start, so a slow server shows up as latency rather than as fewer
+ * requests.
+ *
+ * <p>Run it against a dev server started with -DWALLETOBJECTS_FAKE=true to avoid using API quota:
+ *
+ * <pre>
+ * LoadGenerator [baseUrl] [issuerId] [requestsPerSecond] [seconds] [endpoints]
+ * </pre>
+ *
+ * endpoints is a comma separated subset of classlist, objlist, save, patch, search, jwt and
+ * addmessage, used in turn. A loyalty class and OBJECTS objects (100 by default) are saved first.
+ */
+public class LoadGenerator {
+  private static final JsonFactory jsonFactory = new GsonFactory();
+  private static final List<String> ALL_ENDPOINTS =
+      Arrays.asList("classlist", "objlist", "save", "patch", "search", "jwt", "addmessage");
+  private static final int OBJECTS = Integer.getInteger("OBJECTS", 100);
+  private static final int THREADS = Integer.getInteger("THREADS", 64);
+
+  private final HttpRequestFactory requests = new NetHttpTransport().createRequestFactory();
+  private final String baseUrl;
+  private final String issuerId;
+  private final String classId;
+  private final Map<String, Histogram> histograms = new LinkedHashMap<String, Histogram>();
+  private final AtomicLong classVersion = new AtomicLong(1);
+  private final AtomicInteger sequence = new AtomicInteger();
+
+  LoadGenerator(String baseUrl, String issuerId, List<String> endpoints) {
+    this.baseUrl = baseUrl;
+    this.issuerId = issuerId;
+    this.classId = issuerId + ".loadgen-class";
+    for (String endpoint : endpoints) {
+      histograms.put(endpoint, new Histogram());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    String baseUrl = args.length > 0 ? args[0] : "http://localhost:8888";
+    String issuerId = args.length > 1 ? args[1] : Fixtures.ISSUER_ID;
+    double rate = args.length > 2 ? Double.parseDouble(args[2]) : 50;
+    int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 60;
+    List<String> endpoints = args.length > 4 ? Arrays.asList(args[4].split(",")) : ALL_ENDPOINTS;
+
+    LoadGenerator generator = new LoadGenerator(baseUrl, issuerId, endpoints);
+    generator.seed();
+    generator.run(rate, seconds);
+  }
+
+  // Saves the class and objects the other endpoints read and update
+  void seed() throws IOException {
+    GenericJson loyaltyClass = Fixtures.resource("loyaltyClass", 0);
+    loyaltyClass.set("id", classId).set("version", 0L);
+    check(post("/save", form("kind", "loyaltyClass", "json", jsonFactory.toString(loyaltyClass))));
+
+    StringBuilder ndjson = new StringBuilder();
+    for (int i = 0; i < OBJECTS; i++) {
+      ndjson.append(jsonFactory.toString(object(i).set("version", 0L))).append('\n');
+    }
+    HttpRequest request = requests.buildPostRequest(
+        url("/batchsave").set("issuerId", issuerId).set("kind", "loyaltyObject"),
+        ByteArrayContent.fromString("application/x-ndjson", ndjson.toString()));
+    check(request.execute());
+  }
+
+  // Starts requests at the rate for the given time, then waits for them and prints the results
+  void run(double rate, int seconds) throws InterruptedException {
+    final ExecutorService workers = Executors.newFixedThreadPool(THREADS);
+    ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+    final String[] endpoints = histograms.keySet().toArray(new String[0]);
+    final long start = System.nanoTime();
+    final long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    final AtomicLong ticks = new AtomicLong();
+
+    ticker.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        final long tick = ticks.getAndIncrement();
+        final long scheduled = start + tick * interval;
+        final String endpoint = endpoints[(int) (tick % endpoints.length)];
+        workers.execute(new Runnable() {
+          @Override
+          public void run() {
+            boolean failed = true;
+            try {
+              failed = !call(endpoint);
+            } catch (Exception e) {
+              failed = true;
+            } finally {
+              histograms.get(endpoint).record(System.nanoTime() - scheduled, failed);
+            }
+          }
+        });
+      }
+    }, 0, interval, TimeUnit.NANOSECONDS);
+
+    for (int elapsed = 10; elapsed < seconds; elapsed += 10) {
+      Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+      report(elapsed);
+    }
+    Thread.sleep(TimeUnit.SECONDS.toMillis(seconds % 10 == 0 ? 10 : seconds % 10));
+    ticker.shutdown();
+    workers.shutdown();
+    workers.awaitTermination(1, TimeUnit.MINUTES);
+    report(seconds);
+  }
+
+  // Sends one request, returning false if it failed or returned an error
+  boolean call(String endpoint) throws IOException {
+    int n = sequence.incrementAndGet() % OBJECTS;
+    String objectId = issuerId + ".loadgen-object-" + n;
+    HttpResponse response;
+    if (endpoint.equals("classlist")) {
+      response = get(url("/classlist").set("issuerId", issuerId));
+    } else if (endpoint.equals("objlist")) {
+      response = get(url("/objlist").set("kind", "loyaltyObject").set("id", classId)
+          .set("maxResults", 20));
+    } else if (endpoint.equals("save")) {
+      GenericJson loyaltyClass = Fixtures.resource("loyaltyClass", 0);
+      loyaltyClass.set("id", classId).set("version", classVersion.incrementAndGet());
+      response = post("/save",
+          form("kind", "loyaltyClass", "json", jsonFactory.toString(loyaltyClass)));
+    } else if (endpoint.equals("patch")) {
+      GenericJson patch = new GenericJson();
+      patch.set("id", objectId).set("version", 1L).set("accountName", "Load " + n);
+      response = post("/patch", form("kind", "loyaltyObject", "json", jsonFactory.toString(patch)));
+    } else if (endpoint.equals("search")) {
+      response = get(url("/search").set("issuerId", issuerId)
+          .set("query", "loadgen-object-" + n).set("kind", "object"));
+    } else if (endpoint.equals("jwt")) {
+      response = post("/jwt", form("kind", "loyaltyObject",
+          "json", jsonFactory.toString(object(n)), "origins", baseUrl));
+    } else if (endpoint.equals("addmessage")) {
+      response = post("/addmessage", form("kind", "loyaltyObject", "id", objectId,
+          "header", "Load test", "body", "Message " + n));
+    } else {
+      throw new IllegalArgumentException("Unknown endpoint " + endpoint);
+    }
+    try {
+      return response.isSuccessStatusCode() && !response.parseAsString().startsWith("{\"error\"");
+    } finally {
+      response.disconnect();
+    }
+  }
+
+  private void report(int elapsedSeconds) {
+    System.out.println(String.format("%n%ds%n%-12s %8s %7s %9s %9s %9s %9s", elapsedSeconds,
+        "endpoint", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p999 ms"));
+    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      Histogram histogram = entry.getValue();
+      System.out.println(String.format("%-12s %8d %7d %9.1f %9.1f %9.1f %9.1f", entry.getKey(),
+          histogram.getCount(), histogram.getErrors(),
+          histogram.getCount() / (double) elapsedSeconds,
+          histogram.getQuantileSeconds(0.5) * 1000, histogram.getQuantileSeconds(0.99) * 1000,
+          histogram.getQuantileSeconds(0.999) * 1000));
+    }
+  }
+
+  private GenericJson object(int n) {
+    GenericJson object = Fixtures.loyaltyObject(issuerId + ".loadgen-object-" + n);
+    object.set("classId", classId);
+    return object;
+  }
+
+  private GenericUrl url(String path) {
+    return new GenericUrl(baseUrl + path);
+  }
+
+  private Map<String, Object> form(String... keysAndValues) {
+    Map<String, Object> form = new HashMap<String, Object>();
+    form.put("issuerId", issuerId);
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      form.put(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return form;
+  }
+
+  private HttpResponse get(GenericUrl url) throws IOException {
+    return requests.buildGetRequest(url).setThrowExceptionOnExecuteError(false).execute();
+  }
+
+  private HttpResponse post(String path, Map<String, Object> form) throws IOException {
+    return requests.buildPostRequest(url(path), new UrlEncodedContent(form))
+        .setThrowExceptionOnExecuteError(false).execute();
+  }
+
+  private static void check(HttpResponse response) throws IOException {
+    String body = response.parseAsString();
+    if (!response.isSuccessStatusCode() || body.startsWith("{\"error\"")) {
+      throw new IOException("Seeding failed: " + response.getStatusCode() + " " + body);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.java.wob.bench;
+
+import com.google.api.client.json.GenericJson;
+import com.google.java.wob.utils.WobPayload;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * WobPayload.addObject for each vertical.
+ */
+@State(Scope.Thread)
+public class PayloadBenchmark {
+  @Param({"loyaltyClass", "loyaltyObject", "offerClass", "offerObject", "genericClass",
+      "genericObject", "boardingPassClass", "boardingPassObject"})
+  String vertical;
+
+  private GenericJson resource;
+
+  @Setup
+  public void setUp() {
+    resource = Fixtures.resource(vertical, 0);
+  }
+
+  @Benchmark
+  public WobPayload addObject() {
+    WobPayload payload = new WobPayload();
+    payload.addObject(resource);
+    return payload;
+  }
+}
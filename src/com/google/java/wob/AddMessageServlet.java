@@ -53,7 +53,7 @@ public class AddMessageServlet extends HttpServlet {
     Walletobjects client = ClientMethods.getClientForId(req.getParameter("issuerId"));
     if (client == null) {
       log.warning("Unable to get client for issuer id " + req.getParameter("issuerId"));
-      resp.getWriter().write(ClientMethods.createError(null));
+      ClientMethods.writeError(resp, null);
       return;
     }
 
@@ -61,17 +61,70 @@ public class AddMessageServlet extends HttpServlet {
     String kind = req.getParameter("kind");
     if (Strings.isNullOrEmpty(id) || Strings.isNullOrEmpty(kind)) {
       log.warning("Unable to add message without id and kind.");
-      resp.getWriter().write(ClientMethods.createError(null));
+      ClientMethods.writeError(resp, null);
       return;
     }
 
     String body = req.getParameter("body");
     if (Strings.isNullOrEmpty(body)) {
       log.warning("Unable to add message without a body.");
-      resp.getWriter().write(ClientMethods.createError(null));
+      ClientMethods.writeError(resp, null);
       return;
     }
 
+    WalletObjectMessage message = buildMessage(req);
+
+    // Create and execute add message request
+    GenericJson updated = null;
+    try {
+      if (kind.contains("loyaltyClass")) {
+        LoyaltyClassAddMessageRequest content = new LoyaltyClassAddMessageRequest();
+        content.setMessage(message);
+        updated = client.loyaltyclass().addmessage(id, content).execute().getResource();
+
+      } else if (kind.contains("genericClass")) {
+        GenericClassAddMessageRequest content = new GenericClassAddMessageRequest();
+        content.setMessage(message);
+        updated = client.genericclass().addmessage(id, content).execute().getResource();
+
+      } else if (kind.contains("loyaltyObject")) {
+        LoyaltyObjectAddMessageRequest content = new LoyaltyObjectAddMessageRequest();
+        content.setMessage(message);
+        updated = client.loyaltyobject().addmessage(id, content).execute().getResource();
+
+      } else if (kind.contains("genericObject")) {
+        GenericObjectAddMessageRequest content = new GenericObjectAddMessageRequest();
+        content.setMessage(message);
+        updated = client.genericobject().addmessage(id, content).execute().getResource();
+
+      } else {
+        log.warning("Unable to add message with invalid kind " + kind + ".");
+        ClientMethods.writeError(resp, null);
+        return;
+      }
+    } catch (GoogleJsonResponseException e) {
+      log.warning("Add message request failed: " + e.getMessage());
+      ClientMethods.writeError(resp, null);
+      return;
+    }
+
+    if (updated == null || Strings.isNullOrEmpty(updated.toString())) {
+      log.warning("Unable to verify update due to unknown error");
+      ClientMethods.writeError(resp, "Unable to verify save, please refresh.");
+      return;
+    }
+
+    KindIndex.record(updated);
+    ResourceCache.update(req.getParameter("issuerId"), updated);
+
+    resp.getWriter().write(updated.toString());
+  }
+
+  /**
+   * Builds the message from the body, header, actionUri, actionUriDescription, imageUri,
+   * imageUriDescription, displayIntervalStart and displayIntervalEnd parameters.
+   */
+  static WalletObjectMessage buildMessage(HttpServletRequest req) {
     String header = req.getParameter("header");
     String actionUriString = req.getParameter("actionUri");
     String actionUriDescription = req.getParameter("actionUriDescription");
@@ -82,7 +135,7 @@ public class AddMessageServlet extends HttpServlet {
 
     WalletObjectMessage message = new WalletObjectMessage();
     message.setHeader(header);
-    message.setBody(body);
+    message.setBody(req.getParameter("body"));
 
     // Action uri
     if (!Strings.isNullOrEmpty(actionUriString)) {
@@ -120,50 +173,6 @@ public class AddMessageServlet extends HttpServlet {
       message.setDisplayInterval(interval);
     }
 
-    // Create and execute add message request
-    GenericJson updated = null;
-    try {
-      if (kind.contains("loyaltyClass")) {
-        LoyaltyClassAddMessageRequest content = new LoyaltyClassAddMessageRequest();
-        content.setMessage(message);
-        client.loyaltyclass().addmessage(id, content).execute();
-        updated = client.loyaltyclass().get(id).execute();
-
-      } else if (kind.contains("genericClass")) {
-        GenericClassAddMessageRequest content = new GenericClassAddMessageRequest();
-        content.setMessage(message);
-        client.genericclass().addmessage(id, content).execute();
-        updated = client.genericclass().get(id).execute();
-
-      } else if (kind.contains("loyaltyObject")) {
-        LoyaltyObjectAddMessageRequest content = new LoyaltyObjectAddMessageRequest();
-        content.setMessage(message);
-        client.loyaltyobject().addmessage(id, content).execute();
-        updated = client.loyaltyobject().get(id).execute();
-
-      } else if (kind.contains("genericObject")) {
-        GenericObjectAddMessageRequest content = new GenericObjectAddMessageRequest();
-        content.setMessage(message);
-        client.genericobject().addmessage(id, content).execute();
-        updated = client.genericobject().get(id).execute();
-
-      } else {
-        log.warning("Unable to add message with invalid kind " + kind + ".");
-        resp.getWriter().write(ClientMethods.createError(null));
-        return;
-      }
-    } catch (GoogleJsonResponseException e) {
-      log.warning("Add message request failed: " + e.getMessage());
-      resp.getWriter().write(ClientMethods.createError(null));
-      return;
-    }
-
-    if (Strings.isNullOrEmpty(updated.toString())) {
-      log.warning("Unable to verify update due to unknown error");
-      resp.getWriter().write(ClientMethods.createError("Unable to verify save, please refresh."));
-      return;
-    }
-
-    resp.getWriter().write(updated.toString());
+    return message;
   }
 }
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.walletobjects.Walletobjects;
+import com.google.api.services.walletobjects.WalletobjectsRequest;
+import com.google.java.wob.utils.WobExecutors;
+import com.google.java.wob.utils.WobRateLimiter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Sends many Walletobjects calls as batch requests of BATCH_SIZE, with up to BATCH_CONCURRENCY
+ * batches in flight on the upstream pool, and writes one NDJSON result line per item in the order
+ * the items were added. Items are added one at a time, so only the batches in flight are held in
+ * memory. finish() writes a summary line with the throughput and batch latency.
+ *
+ * <p>Each call in a batch takes its own rate limit permit, and the batches in flight share the
+ * issuer's permits. A batch is therefore waited for as long as its calls and those of the batches
+ * ahead of it take to get permits at the issuer's current rate, plus UPSTREAM_TIMEOUT_SECONDS.
+ */
+class BatchRunner {
+  private static final Logger log = Logger.getLogger(BatchRunner.class.getName());
+
+  private static final int BATCH_SIZE = Integer.getInteger("BATCH_SIZE", 50);
+  private static final int BATCH_CONCURRENCY = Integer.getInteger("BATCH_CONCURRENCY", 4);
+
+  private final JsonFactory jsonFactory = new GsonFactory();
+  private final Walletobjects client;
+  private final String issuerId;
+  private final WobRateLimiter limiter;
+  private final PrintWriter writer;
+  private final LinkedList<Batch> inFlight = new LinkedList<Batch>();
+  private List<Item> items = new ArrayList<Item>();
+
+  private final long start = System.currentTimeMillis();
+  private int written;
+  private int failed;
+  private int unknown;
+  private int batches;
+  private long totalBatchMillis;
+  private long maxBatchMillis;
+
+  /**
+   * One call in a batch. Items that already have an error are reported without being sent. The
+   * result fields are set by the batch callbacks on an upstream thread.
+   */
+  abstract static class Item {
+    final int line;
+    final Object id;
+    volatile GenericJson response;
+    volatile String error;
+
+    Item(int line, Object id) {
+      this.line = line;
+      this.id = id;
+    }
+
+    /**
+     * @return the request to send for the item
+     */
+    abstract WalletobjectsRequest<? extends GenericJson> request(Walletobjects client)
+        throws IOException;
+
+    /**
+     * @return the saved class or object from the response
+     */
+    GenericJson saved(GenericJson response) {
+      return response;
+    }
+  }
+
+  BatchRunner(Walletobjects client, String issuerId, PrintWriter writer) {
+    this.client = client;
+    this.issuerId = issuerId;
+    this.limiter = WobRateLimiter.forIssuer(issuerId);
+    this.writer = writer;
+  }
+
+  /**
+   * Adds an item to the current batch, sending the batch once it is full. Waits for the oldest
+   * batch and writes its results when BATCH_CONCURRENCY batches are in flight.
+   */
+  void add(Item item) throws IOException {
+    items.add(item);
+    if (items.size() == BATCH_SIZE) {
+      inFlight.add(submit(items));
+      items = new ArrayList<Item>();
+      if (inFlight.size() >= BATCH_CONCURRENCY) {
+        writeResults(inFlight.removeFirst());
+      }
+    }
+  }
+
+  /**
+   * Sends the last batch, writes the results of every batch and the summary line.
+   *
+   * @return the summary
+   */
+  GenericJson finish() throws IOException {
+    if (!items.isEmpty()) {
+      inFlight.add(submit(items));
+      items = new ArrayList<Item>();
+    }
+    while (!inFlight.isEmpty()) {
+      writeResults(inFlight.removeFirst());
+    }
+
+    GenericJson summary = summary();
+    writer.write(jsonFactory.toString(summary));
+    writer.write('\n');
+    writer.flush();
+    return summary;
+  }
+
+  // Queues every item without an error in one batch request and starts it on the upstream pool
+  private Batch submit(final List<Item> batchItems) {
+    int calls = 0;
+    for (Item item : batchItems) {
+      if (item.error == null) {
+        calls++;
+      }
+    }
+    int queued = calls;
+    for (Batch batch : inFlight) {
+      queued += batch.calls;
+    }
+    long permitNanos = (long) (queued * TimeUnit.SECONDS.toNanos(1) / limiter.getSlowestRate());
+    final Batch batch = new Batch(batchItems, calls, System.nanoTime() + permitNanos);
+
+    Callable<Long> call = new Callable<Long>() {
+      @Override
+      public Long call() throws IOException {
+        long start = System.currentTimeMillis();
+        BatchRequest request = client.batch();
+        for (Item item : batchItems) {
+          if (item.error == null) {
+            queue(item.request(client), request, item);
+          }
+        }
+        if (request.size() > 0) {
+          // A call that cannot get its permit by the deadline fails the batch before it is sent
+          WobRateLimiter.setDeadline(batch.permitDeadline);
+          try {
+            batch.started = true;
+            request.execute();
+          } finally {
+            WobRateLimiter.setDeadline(null);
+          }
+        }
+        return System.currentTimeMillis() - start;
+      }
+    };
+    batch.future = WobExecutors.upstream().submit(call);
+    return batch;
+  }
+
+  private static <T extends GenericJson> void queue(WalletobjectsRequest<T> request,
+      BatchRequest batch, final Item item) throws IOException {
+    request.queue(batch, new JsonBatchCallback<T>() {
+      @Override
+      public void onSuccess(T response, HttpHeaders responseHeaders) {
+        item.response = response;
+      }
+
+      @Override
+      public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+        item.error = e.getCode() + " " + e.getMessage();
+      }
+    });
+  }
+
+  // Waits for a batch, then writes a result line for each of its items. The items of a batch that
+  // timed out after it was started have no known result, as their calls may still be made.
+  private void writeResults(Batch batch) throws IOException {
+    String batchError = null;
+    boolean resultUnknown = false;
+    try {
+      long timeoutNanos = batch.permitDeadline - System.nanoTime()
+          + TimeUnit.MILLISECONDS.toNanos(WobExecutors.upstreamTimeoutMillis());
+      long millis = batch.future.get(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS);
+      batches++;
+      totalBatchMillis += millis;
+      maxBatchMillis = Math.max(maxBatchMillis, millis);
+    } catch (ExecutionException e) {
+      log.warning("Batch failed: " + e.getCause().getMessage());
+      batchError = "Batch failed: " + e.getCause().getMessage();
+    } catch (TimeoutException e) {
+      batch.future.cancel(true);
+      log.warning("Batch timed out");
+      batchError = "Batch timed out";
+      resultUnknown = batch.started;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      batchError = "Interrupted";
+    }
+
+    List<GenericJson> saved = new ArrayList<GenericJson>();
+    for (Item item : batch.items) {
+      GenericJson result = new GenericJson();
+      result.put("line", item.line);
+      if (item.id != null) {
+        result.put("id", item.id);
+      }
+      GenericJson updated =
+          item.error == null && item.response != null ? item.saved(item.response) : null;
+      if (updated != null) {
+        result.put("version", updated.get("version"));
+        saved.add(updated);
+        KindIndex.record(updated);
+      } else if (item.error == null && resultUnknown) {
+        unknown++;
+        result.put("unknown", batchError + " after it was sent");
+      } else {
+        failed++;
+        result.put("error", item.error != null ? item.error
+            : batchError != null ? batchError : "No response");
+      }
+      written++;
+      writer.write(jsonFactory.toString(result));
+      writer.write('\n');
+    }
+    ResourceCache.updateAll(issuerId, saved);
+    writer.flush();
+  }
+
+  private GenericJson summary() {
+    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    GenericJson summary = new GenericJson();
+    summary.put("items", written);
+    summary.put("succeeded", written - failed - unknown);
+    summary.put("failed", failed);
+    summary.put("unknown", unknown);
+    summary.put("batches", batches);
+    summary.put("itemsPerSecond", written * 1000.0 / elapsed);
+    summary.put("avgBatchMillis", batches == 0 ? 0 : totalBatchMillis / batches);
+    summary.put("maxBatchMillis", maxBatchMillis);
+    summary.put("elapsedMillis", elapsed);
+    GenericJson json = new GenericJson();
+    json.put("summary", summary);
+    return json;
+  }
+
+  private static class Batch {
+    final List<Item> items;
+    // Calls sent, leaving out the items that already have an error
+    final int calls;
+    // System.nanoTime() by which the calls should have their permits
+    final long permitDeadline;
+    Future<Long> future;
+    // Set once the batch request is being sent
+    volatile boolean started;
+
+    Batch(List<Item> items, int calls, long permitDeadline) {
+      this.items = items;
+      this.calls = calls;
+      this.permitDeadline = permitDeadline;
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.walletobjects.Walletobjects;
+import com.google.api.services.walletobjects.WalletobjectsRequest;
+import com.google.api.services.walletobjects.model.GenericClass;
+import com.google.api.services.walletobjects.model.GenericObject;
+import com.google.api.services.walletobjects.model.LoyaltyClass;
+import com.google.api.services.walletobjects.model.LoyaltyObject;
+import com.google.api.services.walletobjects.model.OfferClass;
+import com.google.api.services.walletobjects.model.OfferObject;
+import com.google.common.base.Strings;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Inserts or updates many wallet classes or objects of one kind. The request body is NDJSON, one
+ * class or object per line; as with /save, a resource with version 0 or no version is inserted and
+ * any other is updated, with its version increased by one.
+ *
+ * <p>Lines are sent by a BatchRunner. The response is NDJSON with one result per line, in the order
+ * of the request, written as each batch completes, followed by a summary line with the throughput
+ * and batch latency.
+ */
+public class BatchSaveServlet extends HttpServlet {
+  private static final Logger log = Logger.getLogger(BatchSaveServlet.class.getName());
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+
+    resp.setContentType("application/x-ndjson; charset=utf-8");
+
+    String issuerId = req.getParameter("issuerId");
+    Walletobjects client = ClientMethods.getClientForId(issuerId);
+    if (client == null) {
+      log.warning("Unable to get client for issuer id " + issuerId);
+      ClientMethods.writeError(resp, null);
+      return;
+    }
+
+    final String kind = req.getParameter("kind");
+    if (Strings.isNullOrEmpty(kind) || modelClass(kind) == null) {
+      log.warning("Unable to save batch with invalid kind " + kind + ".");
+      ClientMethods.writeError(resp, null);
+      return;
+    }
+    Class<? extends GenericJson> modelClass = modelClass(kind);
+
+    JsonFactory jsonFactory = new GsonFactory();
+    BufferedReader reader = req.getReader();
+    BatchRunner runner = new BatchRunner(client, issuerId, resp.getWriter());
+
+    String line;
+    int lineNumber = 0;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      GenericJson resource = null;
+      String error = null;
+      try {
+        resource = jsonFactory.fromString(line, modelClass);
+      } catch (IOException e) {
+        error = "Invalid json: " + e.getMessage();
+      } catch (IllegalArgumentException e) {
+        error = "Invalid json: " + e.getMessage();
+      }
+
+      final GenericJson item = resource;
+      BatchRunner.Item save = new BatchRunner.Item(lineNumber,
+          resource == null ? null : resource.get("id")) {
+        @Override
+        WalletobjectsRequest<? extends GenericJson> request(Walletobjects client)
+            throws IOException {
+          return BatchSaveServlet.request(client, kind, item);
+        }
+      };
+      save.error = error;
+      runner.add(save);
+    }
+
+    log.info("Batch save for " + issuerId + ": " + runner.finish());
+  }
+
+  // Insert request for a new resource and update otherwise, with the version increased
+  private static WalletobjectsRequest<? extends GenericJson> request(Walletobjects client,
+      String kind, GenericJson resource) throws IOException {
+    Long version = (Long) resource.get("version");
+    boolean insert = version == null || version == 0;
+    resource.set("version", insert ? 1L : version + 1);
+    String id = (String) resource.get("id");
+
+    if (kind.contains("offerClass")) {
+      OfferClass offerClass = (OfferClass) resource;
+      return insert ? client.offerclass().insert(offerClass)
+          : client.offerclass().update(id, offerClass);
+    } else if (kind.contains("loyaltyClass")) {
+      LoyaltyClass loyaltyClass = (LoyaltyClass) resource;
+      return insert ? client.loyaltyclass().insert(loyaltyClass)
+          : client.loyaltyclass().update(id, loyaltyClass);
+    } else if (kind.contains("genericClass")) {
+      GenericClass genericClass = (GenericClass) resource;
+      return insert ? client.genericclass().insert(genericClass)
+          : client.genericclass().update(id, genericClass);
+    } else if (kind.contains("offerObject")) {
+      OfferObject offerObject = (OfferObject) resource;
+      return insert ? client.offerobject().insert(offerObject)
+          : client.offerobject().update(id, offerObject);
+    } else if (kind.contains("loyaltyObject")) {
+      LoyaltyObject loyaltyObject = (LoyaltyObject) resource;
+      return insert ? client.loyaltyobject().insert(loyaltyObject)
+          : client.loyaltyobject().update(id, loyaltyObject);
+    }
+    GenericObject genericObject = (GenericObject) resource;
+    return insert ? client.genericobject().insert(genericObject)
+        : client.genericobject().update(id, genericObject);
+  }
+
+  // Model class for the kind, or null if the kind is invalid
+  private static Class<? extends GenericJson> modelClass(String kind) {
+    if (kind.contains("offerClass")) {
+      return OfferClass.class;
+    } else if (kind.contains("loyaltyClass")) {
+      return LoyaltyClass.class;
+    } else if (kind.contains("genericClass")) {
+      return GenericClass.class;
+    } else if (kind.contains("offerObject")) {
+      return OfferObject.class;
+    } else if (kind.contains("loyaltyObject")) {
+      return LoyaltyObject.class;
+    } else if (kind.contains("genericObject")) {
+      return GenericObject.class;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.json.GenericJson;
+import com.google.api.services.walletobjects.Walletobjects;
+import com.google.api.services.walletobjects.WalletobjectsRequest;
+import com.google.api.services.walletobjects.model.GenericClassAddMessageRequest;
+import com.google.api.services.walletobjects.model.GenericObjectAddMessageRequest;
+import com.google.api.services.walletobjects.model.LoyaltyClassAddMessageRequest;
+import com.google.api.services.walletobjects.model.LoyaltyObjectAddMessageRequest;
+import com.google.api.services.walletobjects.model.TokenPagination;
+import com.google.api.services.walletobjects.model.WalletObjectMessage;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Adds one message to many classes or objects of one kind. The targets are either the comma or
+ * whitespace separated ids in the ids parameter or, with classId, every object of that class. The
+ * message parameters are the same as for /addmessage.
+ *
+ * <p>The addmessage calls are sent by a BatchRunner, and the response is NDJSON: one line per id
+ * with its new version or an error, written as each batch completes, then a summary line. An id
+ * whose batch timed out after it was sent is reported as unknown rather than as an error, since
+ * addmessage is not idempotent and its message may already have been added. The objects are not
+ * read again; the addmessage responses already hold them.
+ */
+public class BulkAddMessageServlet extends HttpServlet {
+  private static final Logger log = Logger.getLogger(BulkAddMessageServlet.class.getName());
+
+  // Only the ids are needed when listing the objects of a class
+  private static final String ID_FIELDS = "resources/id,tokenPagination";
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+
+    resp.setContentType("application/x-ndjson; charset=utf-8");
+
+    String issuerId = req.getParameter("issuerId");
+    Walletobjects client = ClientMethods.getClientForId(issuerId);
+    if (client == null) {
+      log.warning("Unable to get client for issuer id " + issuerId);
+      ClientMethods.writeError(resp, null);
+      return;
+    }
+
+    final String kind = req.getParameter("kind");
+    String ids = req.getParameter("ids");
+    String classId = req.getParameter("classId");
+    if (Strings.isNullOrEmpty(kind)
+        || (Strings.isNullOrEmpty(ids) && Strings.isNullOrEmpty(classId))) {
+      log.warning("Unable to add messages without kind and either ids or classId.");
+      ClientMethods.writeError(resp, null);
+      return;
+    }
+    if (!kind.contains("loyaltyClass") && !kind.contains("genericClass")
+        && !kind.contains("loyaltyObject") && !kind.contains("genericObject")) {
+      log.warning("Unable to add messages with invalid kind " + kind + ".");
+      ClientMethods.writeError(resp, null);
+      return;
+    }
+    if (Strings.isNullOrEmpty(ids) && !kind.contains("Object")) {
+      log.warning("Unable to add messages to the objects of a class with kind " + kind + ".");
+      ClientMethods.writeError(resp, null);
+      return;
+    }
+    if (Strings.isNullOrEmpty(req.getParameter("body"))) {
+      log.warning("Unable to add message without a body.");
+      ClientMethods.writeError(resp, null);
+      return;
+    }
+
+    // Built once and shared by every call
+    final WalletObjectMessage message = AddMessageServlet.buildMessage(req);
+    BatchRunner runner = new BatchRunner(client, issuerId, resp.getWriter());
+
+    int line = 0;
+    if (!Strings.isNullOrEmpty(ids)) {
+      for (String id : Splitter.onPattern("[,\\s]+").omitEmptyStrings().split(ids)) {
+        runner.add(item(++line, kind, id, message));
+      }
+    } else {
+      String token = null;
+      try {
+        do {
+          GenericJson page = listRequest(client, kind, classId, token).execute();
+          @SuppressWarnings("unchecked")
+          List<? extends GenericJson> objects = (List<? extends GenericJson>) page.get("resources");
+          if (objects != null) {
+            for (GenericJson object : objects) {
+              runner.add(item(++line, kind, (String) object.get("id"), message));
+            }
+          }
+          TokenPagination pagination = (TokenPagination) page.get("tokenPagination");
+          token = pagination == null ? null : Strings.emptyToNull(pagination.getNextPageToken());
+        } while (token != null);
+      } catch (GoogleJsonResponseException e) {
+        // Messages already queued are still sent; the summary shows how far the list got
+        log.warning("Object list for " + classId + " failed after " + line + " objects: "
+            + e.getMessage());
+      }
+    }
+
+    log.info("Bulk add message for " + issuerId + ": " + runner.finish());
+  }
+
+  private static BatchRunner.Item item(int line, final String kind, final String objectId,
+      final WalletObjectMessage message) {
+    return new BatchRunner.Item(line, objectId) {
+      @Override
+      WalletobjectsRequest<? extends GenericJson> request(Walletobjects client)
+          throws IOException {
+        return addMessageRequest(client, kind, objectId, message);
+      }
+
+      @Override
+      GenericJson saved(GenericJson response) {
+        return (GenericJson) response.get("resource");
+      }
+    };
+  }
+
+  private static WalletobjectsRequest<? extends GenericJson> addMessageRequest(
+      Walletobjects client, String kind, String id, WalletObjectMessage message)
+      throws IOException {
+    if (kind.contains("loyaltyClass")) {
+      return client.loyaltyclass().addmessage(id,
+          new LoyaltyClassAddMessageRequest().setMessage(message));
+    } else if (kind.contains("genericClass")) {
+      return client.genericclass().addmessage(id,
+          new GenericClassAddMessageRequest().setMessage(message));
+    } else if (kind.contains("loyaltyObject")) {
+      return client.loyaltyobject().addmessage(id,
+          new LoyaltyObjectAddMessageRequest().setMessage(message));
+    }
+    return client.genericobject().addmessage(id,
+        new GenericObjectAddMessageRequest().setMessage(message));
+  }
+
+  // One page of the ids of the class' objects
+  private static WalletobjectsRequest<? extends GenericJson> listRequest(Walletobjects client,
+      String kind, String classId, String token) throws IOException {
+    WalletobjectsRequest<? extends GenericJson> request;
+    if (kind.contains("loyalty")) {
+      request = client.loyaltyobject().list(classId);
+    } else {
+      request = client.genericobject().list(classId);
+    }
+    request.setFields(ID_FIELDS);
+    if (token != null) {
+      request.set("token", token);
+    }
+    return request;
+  }
+}
@@ -14,21 +14,19 @@
 
 package com.google.java.wob;
 
-import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.json.GenericJson;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.walletobjects.Walletobjects;
-import com.google.api.services.walletobjects.model.GenericClassListResponse;
-import com.google.api.services.walletobjects.model.LoyaltyClassListResponse;
-import com.google.api.services.walletobjects.model.OfferClassListResponse;
+import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonParser;
+import com.google.java.wob.utils.WobExecutors;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServlet;
@@ -41,19 +39,26 @@ import javax.servlet.http.HttpServletResponse;
 public class ClassListServlet extends HttpServlet {
   private static final Logger log = Logger.getLogger(ClassListServlet.class.getName());
 
+  // Set on a partial result to the comma separated kinds that could not be listed
+  static final String FAILED_KINDS_HEADER = "X-Wob-Failed-Kinds";
+
+  private static final String[] KINDS = {"offerClass", "loyaltyClass", "genericClass"};
+
+  private static final String CLASS_LIST = "classlist";
+
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
 
     resp.setContentType("application/json; charset=utf-8");
 
     // Get issuer ID from client
-    String issuerId = req.getParameter("issuerId");
+    final String issuerId = req.getParameter("issuerId");
     if (Strings.isNullOrEmpty(issuerId)) {
       log.warning("No issuer id");
       return;
     }
 
-    Long id;
+    final Long id;
     try {
       id = Long.valueOf(issuerId);
     } catch (NumberFormatException e) {
@@ -61,48 +66,116 @@ public class ClassListServlet extends HttpServlet {
       return;
     }
 
-    Walletobjects client = ClientMethods.getClientForId(issuerId);
+    final Walletobjects client = ClientMethods.getClientForId(issuerId);
     if (client == null) {
       log.warning("Unable to get client for issuer id " + issuerId + ".");
       return;
     }
 
-    // Add all classes to class list
-    OfferClassListResponse offerClassList;
-    LoyaltyClassListResponse loyaltyClassList;
-    GenericClassListResponse genericClassList;
-    try {
-      offerClassList = client.offerclass().list(id).execute();
-      loyaltyClassList = client.loyaltyclass().list(id).execute();
-      genericClassList = client.genericclass().list(id).execute();
-    } catch (GoogleJsonResponseException e) {
-      log.warning("Class list failed " + e.getMessage());
-      resp.getWriter()
-          .write(ClientMethods.createError("Something went wrong, please refresh and try again"));
+    ResourceCache.CachedList cached = ResourceCache.getList(issuerId, CLASS_LIST);
+    if (cached != null) {
+      if (!ETags.notModified(req, resp, cached.getETag())) {
+        ResponseBytes.array(CLASS_LIST + ":" + issuerId, cached.getETag(), cached.getResources())
+            .write(req, resp);
+      }
+      return;
+    }
+
+    // Identical requests made while the classes are being listed share the result, unless the
+    // issuer saved something after the fetch began
+    final long generation = ResourceCache.generation(issuerId);
+    String key = CLASS_LIST + ":" + issuerId + ":" + generation;
+    InFlightReads.Response response =
+        InFlightReads.fetch(key, new Callable<InFlightReads.Response>() {
+          @Override
+          public InFlightReads.Response call() throws IOException {
+            return listClasses(client, issuerId, id, generation);
+          }
+        });
+    if (response == null) {
+      ClientMethods.writeError(resp, "Something went wrong, please refresh and try again");
       return;
     }
+    response.write(req, resp);
+  }
+
+  // Lists every kind of class at once, so the page only waits for the slowest call
+  private static InFlightReads.Response listClasses(Walletobjects client, String issuerId, Long id,
+      long generation) throws IOException {
+    List<Callable<List<? extends GenericJson>>> calls = listCalls(client, id);
+    List<Future<List<? extends GenericJson>>> results;
+    try {
+      results = WobExecutors.invokeAll(calls);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.warning("Class list interrupted");
+      return InFlightReads.Response.error("Something went wrong, please refresh and try again");
+    }
 
+    // Merge in the order of KINDS, noting any kind that failed or timed out
     List<GenericJson> classList = new ArrayList<GenericJson>();
-    if (offerClassList.getResources() != null) {
-      classList.addAll(offerClassList.getResources());
+    List<String> failedKinds = new ArrayList<String>();
+    for (int i = 0; i < results.size(); i++) {
+      try {
+        List<? extends GenericJson> resources = results.get(i).get();
+        if (resources != null) {
+          classList.addAll(resources);
+        }
+      } catch (ExecutionException e) {
+        log.warning(KINDS[i] + " list failed " + e.getCause().getMessage());
+        failedKinds.add(KINDS[i]);
+      } catch (CancellationException e) {
+        log.warning(KINDS[i] + " list timed out");
+        failedKinds.add(KINDS[i]);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failedKinds.add(KINDS[i]);
+      }
     }
-    if (loyaltyClassList.getResources() != null) {
-      classList.addAll(loyaltyClassList.getResources());
+
+    if (failedKinds.size() == KINDS.length) {
+      return InFlightReads.Response.error("Something went wrong, please refresh and try again");
     }
-    if (genericClassList.getResources() != null) {
-      classList.addAll(genericClassList.getResources());
+    if (failedKinds.isEmpty()) {
+      // Only complete lists are cached
+      classList = ResourceCache.putList(issuerId, CLASS_LIST, classList, null, generation);
     }
+    KindIndex.recordAll(classList);
 
     // Write the class' JSON as a list for client side
     // gson.toJson cannot be used due to differences in how the JSON is created
-    JsonFactory jsonFactory = new GsonFactory();
-    JsonArray array = new JsonArray();
-    JsonParser parser = new JsonParser();
-    for (int i = 0; i < classList.size(); i++) {
-      GenericJson theClass = classList.get(i);
-      theClass.setFactory(jsonFactory);
-      array.add(parser.parse(theClass.toString()));
+    // Partial lists have no ETag, so they are neither cached nor answered with 304
+    if (!failedKinds.isEmpty()) {
+      return InFlightReads.Response.array(CLASS_LIST + ":" + issuerId, null, classList)
+          .setHeader(FAILED_KINDS_HEADER, Joiner.on(',').join(failedKinds));
     }
-    resp.getWriter().write(array.toString());
+    return InFlightReads.Response.array(
+        CLASS_LIST + ":" + issuerId, ETags.of(classList, null), classList);
+  }
+
+  // One list call per kind, in the same order as KINDS
+  private static List<Callable<List<? extends GenericJson>>> listCalls(
+      final Walletobjects client, final Long id) {
+    List<Callable<List<? extends GenericJson>>> calls =
+        new ArrayList<Callable<List<? extends GenericJson>>>();
+    calls.add(new Callable<List<? extends GenericJson>>() {
+      @Override
+      public List<? extends GenericJson> call() throws IOException {
+        return client.offerclass().list(id).execute().getResources();
+      }
+    });
+    calls.add(new Callable<List<? extends GenericJson>>() {
+      @Override
+      public List<? extends GenericJson> call() throws IOException {
+        return client.loyaltyclass().list(id).execute().getResources();
+      }
+    });
+    calls.add(new Callable<List<? extends GenericJson>>() {
+      @Override
+      public List<? extends GenericJson> call() throws IOException {
+        return client.genericclass().list(id).execute().getResources();
+      }
+    });
+    return calls;
   }
 }
@@ -18,14 +18,21 @@ import com.google.api.client.json.GenericJson;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.walletobjects.Walletobjects;
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.java.wob.utils.*;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.security.GeneralSecurityException;
-import java.security.KeyStoreException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import javax.servlet.http.HttpServletResponse;
+
 /**
  * Contains methods to obtain a Walletobjects client for an issuer id as well as
  * generating credentials.
@@ -33,39 +40,63 @@ import java.util.logging.Logger;
 public class ClientMethods {
   private static final Logger log = Logger.getLogger(ClientMethods.class.getName());
 
+  // Ready-built clients keyed by issuer id, so the key, credential and transport are only set up
+  // once per issuer rather than on every request
+  private static final LoadingCache<String, Walletobjects> clients = CacheBuilder.newBuilder()
+      .maximumSize(Long.getLong("CLIENT_CACHE_SIZE", 100L))
+      .expireAfterWrite(Long.getLong("CLIENT_CACHE_TTL_MINUTES", 30L), TimeUnit.MINUTES)
+      .recordStats()
+      .build(new CacheLoader<String, Walletobjects>() {
+        @Override
+        public Walletobjects load(String issuerId) throws Exception {
+          return new WobUtils(createCredentials(issuerId)).getClient();
+        }
+      });
+
   public static Walletobjects getClientForId(String issuerId) {
+    if (Strings.isNullOrEmpty(issuerId)) {
+      log.warning("No issuer id");
+      return null;
+    }
+
+    if (IssuerRegistry.isKnownInvalid(issuerId)) {
+      log.warning("Issuer id " + issuerId + " recently failed validation");
+      return null;
+    }
 
-    WobUtils utils = null;
     Walletobjects client = null;
     try {
-      utils = new WobUtils(createCredentials(issuerId));
-      client = utils.getClient();
-    } catch (FileNotFoundException e) {
-      log.warning(e.getMessage());
-    } catch (KeyStoreException e) {
-      log.warning(e.getMessage());
-    } catch (IOException e) {
-      log.warning(e.getMessage());
-    } catch (GeneralSecurityException e) {
-      log.warning(e.getMessage());
+      client = clients.get(issuerId);
+    } catch (ExecutionException e) {
+      log.warning(e.getCause().getMessage());
+    } catch (UncheckedExecutionException e) {
+      log.warning(e.getCause().getMessage());
     }
 
-    try {
-      client.offerclass().list(Long.decode(issuerId)).execute();
-    } catch(NullPointerException e) {
-      log.warning(e.getMessage());
-      client = null;
-    } catch (IOException e) {
-      log.warning(e.getMessage());
-      client = null;
-    } catch (NumberFormatException e) {
-      log.warning(e.getMessage());
+    if (client != null && !IssuerRegistry.validate(issuerId, client)) {
       client = null;
     }
 
+    if (client == null) {
+      clients.invalidate(issuerId);
+    }
     return client;
   }
 
+  /**
+   * Drops the cached client for an issuer id so the next request builds a fresh one.
+   */
+  public static void invalidateClient(String issuerId) {
+    clients.invalidate(issuerId);
+  }
+
+  /**
+   * @return hit, miss and eviction counts for the client cache
+   */
+  public static CacheStats getClientCacheStats() {
+    return clients.stats();
+  }
+
   public static WobCredentials createCredentials(String issuerId) {
     return new WobCredentials(
         System.getProperty("SERVICE_ACCOUNT_ID"), System.getProperty("PRIVATE_KEY"),
@@ -83,4 +114,11 @@ public class ClientMethods {
     error.setFactory(jsonFactory);
     return error.toString();
   }
+
+  // Writes an error created by createError, and counts the request as an error in its servlet's
+  // metrics
+  public static void writeError(HttpServletResponse resp, String text) throws IOException {
+    WobMetrics.markError();
+    resp.getWriter().write(createError(text));
+  }
 }
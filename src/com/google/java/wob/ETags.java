@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+import com.google.api.client.json.GenericJson;
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.util.Collection;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Weak ETags for list responses, computed from the id and version of each resource rather than
+ * from the serialized JSON, so a request whose If-None-Match still matches is answered with 304
+ * before anything is serialized. Every save increments the version, so a changed resource always
+ * changes the tag.
+ */
+final class ETags {
+  private ETags() {}
+
+  /**
+   * @param resources the resources of the response, in order
+   * @param nextPageToken the token of the following page, if any
+   * @return the ETag of the response, e.g. W/"0123456789abcdef0123456789abcdef"
+   */
+  static String of(Collection<? extends GenericJson> resources, String nextPageToken) {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    for (GenericJson resource : resources) {
+      hasher.putString(String.valueOf(resource.get("id"))).putString("\n")
+          .putString(String.valueOf(resource.get("version"))).putString("\n");
+    }
+    if (nextPageToken != null) {
+      hasher.putString(nextPageToken);
+    }
+    return "W/\"" + hasher.hash() + "\"";
+  }
+
+  /**
+   * Sets the ETag of the response and, if the request's If-None-Match matches it, answers with
+   * 304 Not Modified. Responses must be revalidated before they are reused, so the UI's repeated
+   * list requests are all conditional.
+   *
+   * @return true if the response is complete and nothing more should be written
+   */
+  static boolean notModified(HttpServletRequest req, HttpServletResponse resp, String etag) {
+    resp.setHeader("ETag", etag);
+    resp.setHeader("Cache-Control", "private, no-cache");
+    // A 304 carries the same Vary as the 200 it stands for, which may be compressed
+    resp.setHeader("Vary", "Accept-Encoding");
+    if (matches(req.getHeader("If-None-Match"), etag)) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
+    }
+    return false;
+  }
+
+  // If-None-Match is "*" or a list of tags, compared weakly
+  private static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    String opaque = opaque(etag);
+    for (String tag : Splitter.on(',').trimResults().omitEmptyStrings().split(ifNoneMatch)) {
+      if (tag.equals("*") || opaque(tag).equals(opaque)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String opaque(String tag) {
+    return tag.startsWith("W/") ? tag.substring(2) : tag;
+  }
+}
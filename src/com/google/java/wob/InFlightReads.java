@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+import com.google.api.client.json.GenericJson;
+import com.google.java.wob.utils.WobExecutors;
+import com.google.java.wob.utils.WobMetrics;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Lets concurrent identical reads share one upstream fetch. The first request for a key runs the
+ * fetch on its own thread, and requests for the same key that arrive while it is in flight wait up
+ * to UPSTREAM_TIMEOUT_SECONDS for its serialized response instead of making their own calls.
+ *
+ * <p>Only fetches in flight are shared: a key is released as soon as its fetch finishes, whether it
+ * succeeded or failed, so later requests never see a stale failure. A request that times out or is
+ * interrupted stops waiting without cancelling the fetch, which the other requests still need.
+ * Keys include the issuer's ResourceCache generation, so a read made after a local save never
+ * shares a fetch that began before it.
+ */
+public class InFlightReads {
+  private static final Logger log = Logger.getLogger(InFlightReads.class.getName());
+
+  private static final ConcurrentMap<String, FutureTask<Response>> inFlight =
+      new ConcurrentHashMap<String, FutureTask<Response>>();
+
+  private static final AtomicLong coalesced = new AtomicLong();
+
+  /**
+   * A serialized response, written in the same way to every request that shared it.
+   */
+  public static class Response {
+    private final ResponseBytes body;
+    private final String etag;
+    private final boolean error;
+    private final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+    private Response(ResponseBytes body, String etag, boolean error) {
+      this.body = body;
+      this.etag = etag;
+      this.error = error;
+    }
+
+    /**
+     * @param key names the list for ResponseBytes
+     * @param etag answers requests whose If-None-Match matches it with 304, or null
+     * @return a response of the resources as a JSON array
+     */
+    static Response array(String key, String etag, Collection<? extends GenericJson> resources)
+        throws IOException {
+      return new Response(ResponseBytes.array(key, etag, resources), etag, false);
+    }
+
+    /**
+     * @param key names the list for ResponseBytes
+     * @param etag answers requests whose If-None-Match matches it with 304, or null
+     * @return a response of the resource as a JSON object
+     */
+    static Response object(String key, String etag, GenericJson resource) throws IOException {
+      return new Response(ResponseBytes.object(key, etag, resource), etag, false);
+    }
+
+    /**
+     * @param message as for ClientMethods.createError
+     * @return an error response
+     */
+    static Response error(String message) throws IOException {
+      return new Response(ResponseBytes.of(ClientMethods.createError(message)), null, true);
+    }
+
+    Response setHeader(String name, String value) {
+      headers.put(name, value);
+      return this;
+    }
+
+    void write(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        resp.setHeader(header.getKey(), header.getValue());
+      }
+      if (etag != null && ETags.notModified(req, resp, etag)) {
+        return;
+      }
+      if (error) {
+        WobMetrics.markError();
+      }
+      body.write(req, resp);
+    }
+  }
+
+  /**
+   * Runs the fetch, or waits for the one already in flight for the key.
+   *
+   * @param key identifies the read, e.g. the list name, issuer id and generation
+   * @param fetch makes the upstream calls and serializes the response
+   * @return the response, or null if waiting for it timed out or was interrupted
+   * @throws IOException if the fetch failed
+   */
+  static Response fetch(String key, Callable<Response> fetch) throws IOException {
+    FutureTask<Response> task = new FutureTask<Response>(fetch);
+    FutureTask<Response> running = inFlight.putIfAbsent(key, task);
+    if (running == null) {
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(key, task);
+      }
+      running = task;
+    } else {
+      coalesced.incrementAndGet();
+    }
+
+    try {
+      return running.get(WobExecutors.upstreamTimeoutMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      log.warning("Timed out waiting for " + key);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+    return null;
+  }
+
+  /**
+   * @return the number of requests that shared a fetch already in flight
+   */
+  public static long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  /**
+   * @return the number of fetches in flight
+   */
+  public static int getInFlightCount() {
+    return inFlight.size();
+  }
+}
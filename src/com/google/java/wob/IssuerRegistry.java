@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.walletobjects.Walletobjects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.java.wob.utils.WobRateLimiter;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Remembers which issuer ids have been checked against the API and when. A validated issuer is
+ * revalidated by the first request after its last check is older than ISSUER_REVALIDATE_MINUTES,
+ * as App Engine has no background threads outside a request, and
+ * an issuer that failed validation is remembered for ISSUER_NEGATIVE_TTL_MINUTES so requests for
+ * it fail without calling the API. Only a 400, a 404 or a 403 other than a quota error counts as a
+ * failed validation; token problems, quota errors and server errors keep what was known before.
+ */
+public class IssuerRegistry {
+  private static final Logger log = Logger.getLogger(IssuerRegistry.class.getName());
+
+  private static final long revalidateMillis =
+      TimeUnit.MINUTES.toMillis(Long.getLong("ISSUER_REVALIDATE_MINUTES", 10L));
+
+  // Issuer id to the time it was last validated
+  private static final Cache<String, Long> validated = CacheBuilder.newBuilder()
+      .maximumSize(Long.getLong("ISSUER_CACHE_SIZE", 1000L))
+      .build();
+
+  private static final Cache<String, Boolean> invalid = CacheBuilder.newBuilder()
+      .maximumSize(Long.getLong("ISSUER_NEGATIVE_CACHE_SIZE", 1000L))
+      .expireAfterWrite(Long.getLong("ISSUER_NEGATIVE_TTL_MINUTES", 5L), TimeUnit.MINUTES)
+      .build();
+
+  // Issuers being revalidated, so only one request at a time per issuer makes the call
+  private static final Set<String> revalidating =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * @return true if the issuer id recently failed validation
+   */
+  public static boolean isKnownInvalid(String issuerId) {
+    return invalid.getIfPresent(issuerId) != null;
+  }
+
+  /**
+   * Checks that the issuer id can be used with the client. Only the first request for an issuer
+   * calls the API; later requests are answered from the registry, apart from the one request that
+   * refreshes a stale entry while the others keep using it.
+   *
+   * @return true if the issuer id is valid
+   */
+  public static boolean validate(String issuerId, Walletobjects client) {
+    if (isKnownInvalid(issuerId)) {
+      return false;
+    }
+
+    Long lastValidated = validated.getIfPresent(issuerId);
+    if (lastValidated == null) {
+      return probe(issuerId, client);
+    }
+
+    if (System.currentTimeMillis() - lastValidated > revalidateMillis
+        && revalidating.add(issuerId)) {
+      try {
+        return probe(issuerId, client);
+      } finally {
+        revalidating.remove(issuerId);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Forgets anything known about the issuer id.
+   */
+  public static void forget(String issuerId) {
+    validated.invalidate(issuerId);
+    invalid.invalidate(issuerId);
+  }
+
+  /**
+   * @return the number of issuers currently known to be valid
+   */
+  public static long validatedCount() {
+    return validated.size();
+  }
+
+  // Makes a single list call, asking only for the kind field so no classes are returned
+  private static boolean probe(String issuerId, Walletobjects client) {
+    try {
+      client.offerclass().list(Long.decode(issuerId)).setFields("kind").execute();
+    } catch (NumberFormatException e) {
+      log.warning("Invalid issuer id " + issuerId + ": " + e.getMessage());
+      markInvalid(issuerId);
+      return false;
+    } catch (GoogleJsonResponseException e) {
+      log.warning("Issuer " + issuerId + " failed validation: " + e.getMessage());
+      if (isRejected(e)) {
+        markInvalid(issuerId);
+        return false;
+      }
+      return validated.getIfPresent(issuerId) != null;
+    } catch (IOException e) {
+      // Transient failure, keep whatever was known before
+      log.warning("Unable to validate issuer " + issuerId + ": " + e.getMessage());
+      return validated.getIfPresent(issuerId) != null;
+    }
+
+    validated.put(issuerId, System.currentTimeMillis());
+    return true;
+  }
+
+  // 400 or 404, or 403 for a reason other than quota, says the issuer id itself is bad
+  private static boolean isRejected(GoogleJsonResponseException e) {
+    int status = e.getStatusCode();
+    if (status == 400 || status == 404) {
+      return true;
+    }
+    return status == 403 && !WobRateLimiter.isQuotaError(e.getDetails());
+  }
+
+  private static void markInvalid(String issuerId) {
+    validated.invalidate(issuerId);
+    invalid.put(issuerId, Boolean.TRUE);
+  }
+}
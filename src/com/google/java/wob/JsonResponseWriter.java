@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.client.json.gson.GsonFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+
+/**
+ * Serializes wallet classes and objects straight to a response writer with one JsonGenerator,
+ * producing the same JSON as GenericJson.toString() without building intermediate strings or
+ * Gson trees. The writer is flushed but never closed.
+ */
+public class JsonResponseWriter {
+  private static final JsonFactory jsonFactory = new GsonFactory();
+
+  private final JsonGenerator generator;
+
+  public JsonResponseWriter(Writer writer) throws IOException {
+    generator = jsonFactory.createJsonGenerator(writer);
+  }
+
+  /**
+   * Writes the resources as a JSON array.
+   */
+  public static void writeArray(Writer writer, Collection<? extends GenericJson> resources)
+      throws IOException {
+    JsonResponseWriter json = new JsonResponseWriter(writer);
+    json.startArray();
+    for (GenericJson resource : resources) {
+      json.write(resource);
+    }
+    json.endArray();
+    json.flush();
+  }
+
+  /**
+   * Writes a single resource as a JSON object.
+   */
+  public static void writeObject(Writer writer, GenericJson resource) throws IOException {
+    JsonResponseWriter json = new JsonResponseWriter(writer);
+    json.write(resource);
+    json.flush();
+  }
+
+  public void startArray() throws IOException {
+    generator.writeStartArray();
+  }
+
+  /**
+   * Writes a resource, as the next element if an array has been started.
+   */
+  public void write(GenericJson resource) throws IOException {
+    generator.serialize(resource);
+  }
+
+  public void endArray() throws IOException {
+    generator.writeEndArray();
+  }
+
+  public void flush() throws IOException {
+    generator.flush();
+  }
+}
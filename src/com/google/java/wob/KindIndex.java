@@ -0,0 +1,117 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+import com.google.api.client.json.GenericJson;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers which vertical (offer, loyalty or generic) each class and object id belongs to, from
+ * the resources returned by list, search and save requests, so a lookup can go straight to the
+ * right endpoint. Ids that were searched for and not found in any vertical are remembered for
+ * SEARCH_NEGATIVE_TTL_SECONDS.
+ */
+public class KindIndex {
+  static final String CLASS = "class";
+  static final String OBJECT = "object";
+
+  private static final Cache<String, String> verticals = CacheBuilder.newBuilder()
+      .maximumSize(Long.getLong("KIND_INDEX_SIZE", 100000L))
+      .build();
+
+  private static final Cache<String, Boolean> missing = CacheBuilder.newBuilder()
+      .maximumSize(Long.getLong("KIND_INDEX_SIZE", 100000L))
+      .expireAfterWrite(Long.getLong("SEARCH_NEGATIVE_TTL_SECONDS", 30L), TimeUnit.SECONDS)
+      .build();
+
+  /**
+   * Records the vertical of a class or object using its id and kind, e.g.
+   * "walletobjects#loyaltyObject".
+   */
+  public static void record(GenericJson resource) {
+    if (resource == null) {
+      return;
+    }
+    Object id = resource.get("id");
+    String type = type(resource);
+    if (id == null || type == null) {
+      return;
+    }
+
+    String name = resource.get("kind").toString();
+    name = name.substring(name.indexOf('#') + 1);
+    String vertical = name.substring(0,
+        name.length() - (type.equals(CLASS) ? "Class" : "Object").length());
+
+    String key = key(type, id.toString());
+    verticals.put(key, vertical);
+    missing.invalidate(key);
+  }
+
+  /**
+   * @return "class" or "object" from the resource's kind, or null if it has no known kind
+   */
+  static String type(GenericJson resource) {
+    Object kind = resource.get("kind");
+    if (kind == null) {
+      return null;
+    } else if (kind.toString().endsWith("Class")) {
+      return CLASS;
+    } else if (kind.toString().endsWith("Object")) {
+      return OBJECT;
+    }
+    return null;
+  }
+
+  public static void recordAll(Collection<? extends GenericJson> resources) {
+    for (GenericJson resource : resources) {
+      record(resource);
+    }
+  }
+
+  /**
+   * @param type either "class" or "object"
+   * @return the vertical of the id, or null if it is not known
+   */
+  public static String lookup(String type, String id) {
+    return verticals.getIfPresent(key(type, id));
+  }
+
+  /**
+   * Forgets the vertical of an id, e.g. once a lookup with it has failed.
+   */
+  public static void forget(String type, String id) {
+    verticals.invalidate(key(type, id));
+  }
+
+  public static void recordMissing(String type, String id) {
+    missing.put(key(type, id), Boolean.TRUE);
+  }
+
+  /**
+   * @return true if the id was recently searched for and not found
+   */
+  public static boolean isKnownMissing(String type, String id) {
+    return missing.getIfPresent(key(type, id)) != null;
+  }
+
+  private static String key(String type, String id) {
+    return type + ":" + id;
+  }
+}
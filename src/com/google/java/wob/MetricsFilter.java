@@ -0,0 +1,56 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+import com.google.java.wob.utils.WobMetrics;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Records the latency of each request in the histogram of its servlet path. Requests that throw or
+ * write an error with ClientMethods.writeError count as errors.
+ */
+public class MetricsFilter implements Filter {
+
+  @Override
+  public void init(FilterConfig config) {}
+
+  @Override
+  public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain)
+      throws IOException, ServletException {
+    long start = System.nanoTime();
+    WobMetrics.takeError();
+    boolean failed = true;
+    try {
+      chain.doFilter(req, resp);
+      failed = false;
+    } finally {
+      failed |= WobMetrics.takeError();
+      WobMetrics.servlet(((HttpServletRequest) req).getServletPath())
+          .record(System.nanoTime() - start, failed);
+    }
+  }
+
+  @Override
+  public void destroy() {}
+}
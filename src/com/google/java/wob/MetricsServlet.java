@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+import com.google.common.cache.CacheStats;
+import com.google.java.wob.utils.WobHttpTransport;
+import com.google.java.wob.utils.WobJwtCache;
+import com.google.java.wob.utils.WobMetrics;
+import com.google.java.wob.utils.WobMetrics.Histogram;
+import com.google.java.wob.utils.WobRateLimiter;
+
+import org.apache.http.pool.PoolStats;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes the metrics in the Prometheus text format: latency summaries and error counts for each
+ * servlet, Walletobjects operation, webservice method and JWT signing, webservice calls slower
+ * than the SLO, and the caches, coalesced reads, rate limits and connection pool.
+ */
+public class MetricsServlet extends HttpServlet {
+  private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    resp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+    PrintWriter writer = resp.getWriter();
+
+    writeSummaries(writer, "wob_servlet", "servlet", WobMetrics.servlets());
+    writeSummaries(writer, "wob_upstream", "operation", WobMetrics.upstream());
+    writeSummaries(writer, "wob_jwt_signing", null,
+        Collections.singletonMap("", WobMetrics.signing()));
+    writeSummaries(writer, "wob_webservice", "method", WobMetrics.webservice());
+    writeType(writer, "wob_webservice_slo_seconds", "gauge");
+    writer.println("wob_webservice_slo_seconds " + WebserviceServlet.SLO_SECONDS);
+    writeType(writer, "wob_webservice_slo_violations_total", "counter");
+    for (Map.Entry<String, Histogram> entry
+        : new TreeMap<String, Histogram>(WobMetrics.webservice()).entrySet()) {
+      writer.println("wob_webservice_slo_violations_total{method=\"" + escape(entry.getKey())
+          + "\"} " + entry.getValue().getCountAbove(WebserviceServlet.SLO_SECONDS));
+    }
+
+    writeCache(writer, "wob_jwt_cache", WobJwtCache.getStats());
+    writeCache(writer, "wob_resource_cache", ResourceCache.getStats());
+    writeCache(writer, "wob_client_cache", ClientMethods.getClientCacheStats());
+    writeCache(writer, "wob_response_cache", ResponseBytes.getStats());
+    writeType(writer, "wob_resource_cache_bytes", "gauge");
+    writer.println("wob_resource_cache_bytes " + ResourceCache.getEstimatedBytes());
+    writeType(writer, "wob_resource_cache_entries", "gauge");
+    writer.println("wob_resource_cache_entries " + ResourceCache.size());
+    writeType(writer, "wob_response_cache_bytes", "gauge");
+    writer.println("wob_response_cache_bytes " + ResponseBytes.getCachedBytes());
+
+    writeType(writer, "wob_coalesced_requests_total", "counter");
+    writer.println("wob_coalesced_requests_total " + InFlightReads.getCoalescedCount());
+    writeType(writer, "wob_in_flight_reads", "gauge");
+    writer.println("wob_in_flight_reads " + InFlightReads.getInFlightCount());
+
+    writeType(writer, "wob_rate_limit_qps", "gauge");
+    for (Map.Entry<String, Double> rate : WobRateLimiter.rates().entrySet()) {
+      writer.println("wob_rate_limit_qps" + rateLabels(rate.getKey()) + " " + rate.getValue());
+    }
+    writeType(writer, "wob_rate_limit_queue_depth", "gauge");
+    for (Map.Entry<String, Integer> depth : WobRateLimiter.queueDepths().entrySet()) {
+      writer.println(
+          "wob_rate_limit_queue_depth" + rateLabels(depth.getKey()) + " " + depth.getValue());
+    }
+
+    PoolStats pool = WobHttpTransport.getStats();
+    writeType(writer, "wob_http_connections", "gauge");
+    writer.println("wob_http_connections{state=\"leased\"} " + pool.getLeased());
+    writer.println("wob_http_connections{state=\"pending\"} " + pool.getPending());
+    writer.println("wob_http_connections{state=\"available\"} " + pool.getAvailable());
+    writer.println("wob_http_connections{state=\"max\"} " + pool.getMax());
+    writer.flush();
+  }
+
+  // A summary with the latency quantiles and an error counter for each histogram
+  private static void writeSummaries(PrintWriter writer, String name, String label,
+      Map<String, Histogram> histograms) {
+    Map<String, Histogram> sorted = new TreeMap<String, Histogram>(histograms);
+    writeType(writer, name + "_seconds", "summary");
+    for (Map.Entry<String, Histogram> entry : sorted.entrySet()) {
+      Histogram histogram = entry.getValue();
+      String labels = label == null ? "" : label + "=\"" + escape(entry.getKey()) + "\"";
+      for (double quantile : QUANTILES) {
+        writer.println(name + "_seconds{" + (labels.isEmpty() ? "" : labels + ",")
+            + "quantile=\"" + quantile + "\"} " + histogram.getQuantileSeconds(quantile));
+      }
+      String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+      writer.println(name + "_seconds_sum" + suffix + " " + histogram.getTotalSeconds());
+      writer.println(name + "_seconds_count" + suffix + " " + histogram.getCount());
+    }
+    writeType(writer, name + "_errors_total", "counter");
+    for (Map.Entry<String, Histogram> entry : sorted.entrySet()) {
+      String suffix =
+          label == null ? "" : "{" + label + "=\"" + escape(entry.getKey()) + "\"}";
+      writer.println(name + "_errors_total" + suffix + " " + entry.getValue().getErrors());
+    }
+  }
+
+  private static void writeCache(PrintWriter writer, String name, CacheStats stats) {
+    writeType(writer, name + "_hits_total", "counter");
+    writer.println(name + "_hits_total " + stats.hitCount());
+    writeType(writer, name + "_misses_total", "counter");
+    writer.println(name + "_misses_total " + stats.missCount());
+    writeType(writer, name + "_evictions_total", "counter");
+    writer.println(name + "_evictions_total " + stats.evictionCount());
+  }
+
+  private static void writeType(PrintWriter writer, String name, String type) {
+    writer.println("# TYPE " + name + " " + type);
+  }
+
+  // Rate limiter keys are "issuerId:operation"
+  private static String rateLabels(String key) {
+    int colon = key.lastIndexOf(':');
+    return "{issuer=\"" + escape(key.substring(0, colon)) + "\",operation=\""
+        + escape(key.substring(colon + 1)) + "\"}";
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
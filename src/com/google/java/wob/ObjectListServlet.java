@@ -15,20 +15,28 @@
 package com.google.java.wob;
 
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.client.json.GenericJson;
 import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.walletobjects.Walletobjects;
-import com.google.api.services.walletobjects.model.GenericObjectListResponse;
-import com.google.api.services.walletobjects.model.LoyaltyObjectListResponse;
-import com.google.api.services.walletobjects.model.OfferObjectListResponse;
+import com.google.api.services.walletobjects.WalletobjectsRequest;
+import com.google.api.services.walletobjects.model.GenericObject;
+import com.google.api.services.walletobjects.model.LoyaltyObject;
+import com.google.api.services.walletobjects.model.OfferObject;
+import com.google.api.services.walletobjects.model.TokenPagination;
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonParser;
+import com.google.java.wob.utils.WobMetrics;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServlet;
@@ -37,99 +45,286 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Uses a wallet class id in order to retrieve objects of that class.
+ *
+ * <p>Optional parameters: maxResults and token request a single page of objects, with the token
+ * of the following page returned in the X-Wob-Next-Page-Token header. stream=true writes every
+ * object of the class to the response as it is read, one page at a time, so memory use does not
+ * depend on the size of the class. A streamed list that fails part way is left unterminated, so it
+ * cannot be mistaken for a complete one. Streamed lists bypass the ResourceCache.
  */
 public class ObjectListServlet extends HttpServlet {
   private static final Logger log = Logger.getLogger(ObjectListServlet.class.getName());
 
+  static final String NEXT_PAGE_TOKEN_HEADER = "X-Wob-Next-Page-Token";
+
+  // How many streamed objects are written between flushes
+  private static final int FLUSH_EVERY = 50;
+
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
 
     resp.setContentType("application/json; charset=utf-8");
 
     // Add all objects of kind "kind" and with class id "id"
-    String kind = req.getParameter("kind");
-    String id = req.getParameter("id");
+    final String kind = req.getParameter("kind");
+    final String id = req.getParameter("id");
     if (Strings.isNullOrEmpty(kind) || Strings.isNullOrEmpty(id)) {
       log.warning("Unable to retrieve objects without both kind and id");
-      resp.getWriter().write(ClientMethods.createError(null));
+      ClientMethods.writeError(resp, null);
       return;
     }
 
-    String issuerId;
+    if (objectClass(kind) == null) {
+      log.warning("Unable to retrieve objects with invalid kind " + kind + ".");
+      ClientMethods.writeError(resp, null);
+      return;
+    }
+
+    final Long maxResults;
+    try {
+      maxResults = Strings.isNullOrEmpty(req.getParameter("maxResults"))
+          ? null : Long.valueOf(req.getParameter("maxResults"));
+    } catch (NumberFormatException e) {
+      log.warning("Invalid maxResults: " + e.getMessage());
+      ClientMethods.writeError(resp, null);
+      return;
+    }
+    final String token = Strings.emptyToNull(req.getParameter("token"));
+
+    final String issuerId;
     try {
       issuerId = id.substring(0, id.indexOf("."));
     } catch (StringIndexOutOfBoundsException e) {
       log.warning("Invalid issuer id");
-      resp.getWriter().write(ClientMethods.createError(null));
+      ClientMethods.writeError(resp, null);
       return;
     }
 
-    Walletobjects client = ClientMethods.getClientForId(issuerId);
+    final Walletobjects client = ClientMethods.getClientForId(issuerId);
     if (client == null) {
       log.warning("Unable to get client for issuer id " + issuerId + ".");
-      resp.getWriter().write(ClientMethods.createError(null));
+      ClientMethods.writeError(resp, null);
       return;
     }
 
-    List<GenericJson> objList = new ArrayList<GenericJson>();
-    GenericJson theClass = null;
-    try {
-      if (kind.contains("offer")) {
-        // Attempt to list objects
-        OfferObjectListResponse offerList = client.offerobject().list(id).execute();
-        // If no objects exist, retrieve the class
-        if (offerList.getResources() != null) {
-          objList.addAll(offerList.getResources());
-        } else {
-          theClass = client.offerclass().get(id).execute();
+    if ("true".equals(req.getParameter("stream"))) {
+      streamObjects(client, kind, id, token, maxResults, resp);
+      return;
+    }
+
+    final String listName = "objlist:" + kind + ":" + id + ":" + token + ":" + maxResults;
+    ResourceCache.CachedList cached = ResourceCache.getList(issuerId, listName);
+    if (cached != null) {
+      if (!cached.getResources().isEmpty()) {
+        if (cached.getNextPageToken() != null) {
+          resp.setHeader(NEXT_PAGE_TOKEN_HEADER, cached.getNextPageToken());
         }
-      } else if (kind.contains("loyalty")) {
-        // Attempt to list objects
-        LoyaltyObjectListResponse loyaltyList = client.loyaltyobject().list(id).execute();
-        // If no objects exist, retrieve the class
-        if (loyaltyList.getResources() != null) {
-          objList.addAll(loyaltyList.getResources());
-        } else {
-          theClass = client.loyaltyclass().get(id).execute();
+        if (!ETags.notModified(req, resp, cached.getETag())) {
+          ResponseBytes.array(listName, cached.getETag(), cached.getResources()).write(req, resp);
         }
-      } else if (kind.contains("generic")) {
-        // Attempt to list objects
-        GenericObjectListResponse genericList = client.genericobject().list(id).execute();
-        // If no objects exist, retrieve the class
-        if (genericList.getResources() != null) {
-          objList.addAll(genericList.getResources());
-        } else {
-          theClass = client.genericclass().get(id).execute();
+        return;
+      }
+      GenericJson cachedClass = ResourceCache.getResource(issuerId, KindIndex.CLASS, id);
+      if (cachedClass != null) {
+        String etag = ETags.of(Collections.singletonList(cachedClass), null);
+        if (!ETags.notModified(req, resp, etag)) {
+          ResponseBytes.object(listName, etag, cachedClass).write(req, resp);
         }
-      } else {
-        log.warning("Unable to retrieve objects with invalid kind " + kind + ".");
-        resp.getWriter().write(ClientMethods.createError(null));
         return;
       }
+    }
+
+    // Identical requests made while the page is being read share the result, unless the issuer
+    // saved something after the read began
+    final long generation = ResourceCache.generation(issuerId);
+    String key = listName + ":" + issuerId + ":" + generation;
+    InFlightReads.Response response =
+        InFlightReads.fetch(key, new Callable<InFlightReads.Response>() {
+          @Override
+          public InFlightReads.Response call() throws IOException {
+            return listObjects(client, kind, id, token, maxResults, issuerId, listName,
+                generation);
+          }
+        });
+    if (response == null) {
+      ClientMethods.writeError(resp, "Something went wrong, please refresh and try again");
+      return;
+    }
+    response.write(req, resp);
+  }
+
+  // Reads one page of objects, or the class if it has no objects, and caches it as listName
+  private static InFlightReads.Response listObjects(Walletobjects client, String kind, String id,
+      String token, Long maxResults, String issuerId, String listName, long generation)
+      throws IOException {
+    List<GenericJson> objList = new ArrayList<GenericJson>();
+    GenericJson theClass = null;
+    String nextPageToken = null;
+    try {
+      // Attempt to list objects
+      GenericJson page = listRequest(client, kind, id, token, maxResults).execute();
+      @SuppressWarnings("unchecked")
+      List<? extends GenericJson> resources = (List<? extends GenericJson>) page.get("resources");
+      // If no objects exist, retrieve the class
+      if (resources != null && !resources.isEmpty()) {
+        nextPageToken = nextPageToken((TokenPagination) page.get("tokenPagination"));
+        objList.addAll(ResourceCache.putList(issuerId, listName, resources, nextPageToken,
+            generation));
+      } else {
+        theClass = classRequest(client, kind, id).execute();
+        ResourceCache.putResource(issuerId, theClass);
+        ResourceCache.putList(issuerId, listName, objList, null, generation);
+      }
     } catch (GoogleJsonResponseException e) {
       log.warning("Object list failed: " + e.getMessage());
-      resp.getWriter()
-          .write(ClientMethods.createError("Something went wrong, please refresh and try again"));
-      return;
+      return InFlightReads.Response.error("Something went wrong, please refresh and try again");
     }
 
-    JsonFactory jsonFactory = new GsonFactory();
-    if (objList.size() > 0) {
+    KindIndex.recordAll(objList);
+    KindIndex.record(theClass);
+
+    InFlightReads.Response response;
+    if (objList.isEmpty() && theClass == null) {
+      log.warning("Object list returned neither objects nor a class for " + listName);
+      return InFlightReads.Response.error("Something went wrong, please refresh and try again");
+    } else if (objList.size() > 0) {
       // Write the object's JSON as a list for client side
       // gson.toJson cannot be used due to differences in how the JSON is created
-      JsonArray array = new JsonArray();
-      JsonParser parser = new JsonParser();
-      for (int i = 0; i < objList.size(); i++) {
-        GenericJson theObj = objList.get(i);
-        theObj.setFactory(jsonFactory);
-        array.add(parser.parse(theObj.toString()));
-      }
-      resp.getWriter().write(array.toString());
+      response = InFlightReads.Response.array(
+          listName, ETags.of(objList, nextPageToken), objList);
     } else {
       // Write the class if there are no objects present so that the user
       // may still create an object and have a class to build on top of
-      theClass.setFactory(jsonFactory);
-      resp.getWriter().write(theClass.toString());
+      response = InFlightReads.Response.object(
+          listName, ETags.of(Collections.singletonList(theClass), null), theClass);
     }
+    if (nextPageToken != null) {
+      response.setHeader(NEXT_PAGE_TOKEN_HEADER, nextPageToken);
+    }
+    return response;
+  }
+
+  /**
+   * Reads each page of objects as a stream and writes every object as soon as it is parsed, then
+   * follows the next page token. Only one object is held in memory at a time. As with the paged
+   * list, the class is written instead if it has no objects. If a later page fails, the array is
+   * not closed.
+   */
+  private void streamObjects(Walletobjects client, String kind, String id, String token,
+      Long maxResults, HttpServletResponse resp) throws IOException {
+    JsonFactory jsonFactory = new GsonFactory();
+    Class<? extends GenericJson> objectClass = objectClass(kind);
+    PrintWriter writer = resp.getWriter();
+    JsonResponseWriter json = new JsonResponseWriter(writer);
+    int written = 0;
+
+    try {
+      do {
+        HttpResponse response = listRequest(client, kind, id, token, maxResults).executeUnparsed();
+        JsonParser parser =
+            jsonFactory.createJsonParser(response.getContent(), Charsets.UTF_8);
+        token = null;
+        try {
+          parser.nextToken();
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("resources".equals(field)) {
+              while (parser.nextToken() == JsonToken.START_OBJECT) {
+                GenericJson theObj = parser.parse(objectClass, null);
+                KindIndex.record(theObj);
+                if (written == 0) {
+                  json.startArray();
+                }
+                json.write(theObj);
+                if (++written % FLUSH_EVERY == 0) {
+                  json.flush();
+                }
+              }
+            } else if ("tokenPagination".equals(field)) {
+              token = nextPageToken(parser.parse(TokenPagination.class, null));
+            } else {
+              parser.skipChildren();
+            }
+          }
+        } finally {
+          parser.close();
+          response.disconnect();
+        }
+      } while (token != null);
+    } catch (GoogleJsonResponseException e) {
+      log.warning("Object list failed after " + written + " objects: " + e.getMessage());
+      if (written == 0) {
+        ClientMethods.writeError(resp, "Something went wrong, please refresh and try again");
+      } else {
+        // The array is left open so the truncated list fails to parse instead of looking complete
+        WobMetrics.markError();
+        json.flush();
+      }
+      return;
+    }
+
+    if (written > 0) {
+      json.endArray();
+      json.flush();
+      return;
+    }
+
+    // Write the class if there are no objects present
+    try {
+      GenericJson theClass = classRequest(client, kind, id).execute();
+      KindIndex.record(theClass);
+      json.write(theClass);
+      json.flush();
+    } catch (GoogleJsonResponseException e) {
+      log.warning("Class get failed: " + e.getMessage());
+      ClientMethods.writeError(resp, "Something went wrong, please refresh and try again");
+    }
+  }
+
+  // Model class of the objects for the kind, or null if the kind is invalid
+  private static Class<? extends GenericJson> objectClass(String kind) {
+    if (kind.contains("offer")) {
+      return OfferObject.class;
+    } else if (kind.contains("loyalty")) {
+      return LoyaltyObject.class;
+    } else if (kind.contains("generic")) {
+      return GenericObject.class;
+    }
+    return null;
+  }
+
+  // List request for the kind's objects, limited to one page when a token or size is given
+  private static WalletobjectsRequest<? extends GenericJson> listRequest(Walletobjects client,
+      String kind, String id, String token, Long maxResults) throws IOException {
+    WalletobjectsRequest<? extends GenericJson> request;
+    if (kind.contains("offer")) {
+      request = client.offerobject().list(id);
+    } else if (kind.contains("loyalty")) {
+      request = client.loyaltyobject().list(id);
+    } else {
+      request = client.genericobject().list(id);
+    }
+    if (token != null) {
+      request.set("token", token);
+    }
+    if (maxResults != null) {
+      request.set("maxResults", maxResults);
+    }
+    return request;
+  }
+
+  private static WalletobjectsRequest<? extends GenericJson> classRequest(Walletobjects client,
+      String kind, String id) throws IOException {
+    if (kind.contains("offer")) {
+      return client.offerclass().get(id);
+    } else if (kind.contains("loyalty")) {
+      return client.loyaltyclass().get(id);
+    }
+    return client.genericclass().get(id);
+  }
+
+  private static String nextPageToken(TokenPagination pagination) {
+    return pagination == null ? null : Strings.emptyToNull(pagination.getNextPageToken());
   }
 }
@@ -50,7 +50,7 @@ public class PatchServlet extends HttpServlet {
     Walletobjects client = ClientMethods.getClientForId(req.getParameter("issuerId"));
     if (client == null) {
       log.warning("Unable to get client for issuer id " + req.getParameter("issuerId"));
-      resp.getWriter().write(ClientMethods.createError(null));
+      ClientMethods.writeError(resp, null);
       return;
     }
 
@@ -58,7 +58,7 @@ public class PatchServlet extends HttpServlet {
     String json = req.getParameter("json");
     if (Strings.isNullOrEmpty(kind) || Strings.isNullOrEmpty(json)) {
       log.warning("Unable to update or insert without both kind and json.");
-      resp.getWriter().write(ClientMethods.createError(null));
+      ClientMethods.writeError(resp, null);
       return;
     }
 
@@ -68,68 +68,64 @@ public class PatchServlet extends HttpServlet {
       if (kind.contains("offerClass")) {
         OfferClass offerClass = jsonFactory.fromString(json, OfferClass.class);
         offerClass.setVersion(offerClass.getVersion() + 1);
-        client.offerclass().patch(offerClass.getId(), offerClass).execute();
+        updated = client.offerclass().patch(offerClass.getId(), offerClass).execute();
         log.info("Offer class was patched");
-        updated = client.offerclass().get(offerClass.getId()).execute();
 
       } else if (kind.contains("loyaltyClass")) {
         LoyaltyClass loyaltyClass = jsonFactory.fromString(json, LoyaltyClass.class);
         loyaltyClass.setVersion(loyaltyClass.getVersion() + 1);
-        client.loyaltyclass().patch(loyaltyClass.getId(), loyaltyClass).execute();
+        updated = client.loyaltyclass().patch(loyaltyClass.getId(), loyaltyClass).execute();
         log.info("Loyalty class was patched");
-        updated = client.loyaltyclass().get(loyaltyClass.getId()).execute();
 
       } else if (kind.contains("genericClass")) {
         GenericClass genericClass = jsonFactory.fromString(json, GenericClass.class);
         genericClass.setVersion(genericClass.getVersion() + 1);
-        client.genericclass().patch(genericClass.getId(), genericClass).execute();
+        updated = client.genericclass().patch(genericClass.getId(), genericClass).execute();
         log.info("Generic class was patched");
-        updated = client.genericclass().get(genericClass.getId()).execute();
 
       } else if (kind.contains("offerObject")) {
         OfferObject offerObject = jsonFactory.fromString(json, OfferObject.class);
         offerObject.setVersion(offerObject.getVersion() + 1);
-        client.offerobject().patch(offerObject.getId(), offerObject).execute();
+        updated = client.offerobject().patch(offerObject.getId(), offerObject).execute();
         log.info("Offer object was patched");
-        updated = client.offerobject().get(offerObject.getId()).execute();
 
       } else if (kind.contains("loyaltyObject")) {
         LoyaltyObject loyaltyObject = jsonFactory.fromString(json, LoyaltyObject.class);
         loyaltyObject.setVersion(loyaltyObject.getVersion() + 1);
-        client.loyaltyobject().patch(loyaltyObject.getId(), loyaltyObject).execute();
+        updated = client.loyaltyobject().patch(loyaltyObject.getId(), loyaltyObject).execute();
         log.info("Loyalty object was patched");
-        updated = client.offerobject().get(loyaltyObject.getId()).execute();
 
       } else if (kind.contains("genericObject")) {
         GenericObject genericObject = jsonFactory.fromString(json, GenericObject.class);
         genericObject.setVersion(genericObject.getVersion() + 1);
-        client.genericobject().patch(genericObject.getId(), genericObject).execute();
+        updated = client.genericobject().patch(genericObject.getId(), genericObject).execute();
         log.info("Generic object was patched");
-        updated = client.genericobject().get(genericObject.getId()).execute();
 
       } else {
         log.warning("Unable to update or insert with invalid kind " + kind + ".");
-        resp.getWriter().write(ClientMethods.createError(null));
+        ClientMethods.writeError(resp, null);
         return;
       }
     } catch (GoogleJsonResponseException e) {
       log.warning("Patch failed: " + e.getMessage());
-      resp.getWriter()
-          .write(ClientMethods.createError("Something went wrong, please refresh and try again"));
+      ClientMethods.writeError(resp, "Something went wrong, please refresh and try again");
       return;
 
     } catch (IllegalArgumentException e) {
       log.warning("Invalid json: " + e.getMessage());
-      resp.getWriter().write(ClientMethods.createError(null));
+      ClientMethods.writeError(resp, null);
       return;
     }
 
-    if (Strings.isNullOrEmpty(updated.toString())) {
+    if (updated == null || Strings.isNullOrEmpty(updated.toString())) {
       log.warning("Unable to verify update due to unknown error");
-      resp.getWriter().write(ClientMethods.createError("Unable to verify save, please refresh."));
+      ClientMethods.writeError(resp, "Unable to verify save, please refresh.");
       return;
     }
 
+    KindIndex.record(updated);
+    ResourceCache.update(req.getParameter("issuerId"), updated);
+
     // Return the JSON of the updated object
     resp.getWriter().write(updated.toString());
   }
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+import com.google.api.client.json.GenericJson;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of the classes and objects read from the API, keyed by issuer id, shared by
+ * the list and search servlets. Entries expire after RESOURCE_CACHE_TTL_SECONDS and the least
+ * recently used are evicted once their estimated size passes RESOURCE_CACHE_MAX_BYTES.
+ *
+ * <p>Versions only move forward: a resource is never replaced by an older version of itself, and
+ * a list read from the API picks up any newer version saved locally while it was in flight. Local
+ * saves update the resource, drop the issuer's cached lists and move its generation on, so a list
+ * requested before the save is not cached once it arrives.
+ */
+public class ResourceCache {
+  private static final String RESOURCE = "|resource|";
+  private static final String LIST = "|list|";
+
+  // Estimated overhead of each field, array element and value besides its characters
+  private static final int VALUE_BYTES = 16;
+
+  // Keys of the cached lists of each issuer, so a save drops them without scanning the cache
+  private static final ConcurrentMap<String, Set<String>> listKeys =
+      new ConcurrentHashMap<String, Set<String>>();
+
+  // Number of local saves of each issuer, read before a list is requested
+  private static final ConcurrentMap<String, AtomicLong> generations =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+  private static final AtomicLong bytes = new AtomicLong();
+
+  private static final Cache<String, Entry> entries = CacheBuilder.newBuilder()
+      .maximumWeight(Long.getLong("RESOURCE_CACHE_MAX_BYTES", 16L * 1024 * 1024))
+      .weigher(new Weigher<String, Entry>() {
+        @Override
+        public int weigh(String key, Entry entry) {
+          return entry.bytes;
+        }
+      })
+      .expireAfterWrite(Long.getLong("RESOURCE_CACHE_TTL_SECONDS", 60L), TimeUnit.SECONDS)
+      .removalListener(new RemovalListener<String, Entry>() {
+        @Override
+        public void onRemoval(RemovalNotification<String, Entry> notification) {
+          bytes.addAndGet(-notification.getValue().bytes);
+          String key = notification.getKey();
+          int list = key.indexOf(LIST);
+          if (notification.wasEvicted() && list > 0) {
+            Set<String> keys = listKeys.get(key.substring(0, list));
+            if (keys != null) {
+              keys.remove(key);
+            }
+          }
+        }
+      })
+      .recordStats()
+      .build();
+
+  /**
+   * A cached list, the token of the page after it if the list is one page, and its ETag.
+   */
+  public static class CachedList {
+    private final List<GenericJson> resources;
+    private final String nextPageToken;
+    private final String etag;
+
+    CachedList(List<GenericJson> resources, String nextPageToken) {
+      this.resources = resources;
+      this.nextPageToken = nextPageToken;
+      this.etag = ETags.of(resources, nextPageToken);
+    }
+
+    public List<GenericJson> getResources() {
+      return resources;
+    }
+
+    public String getNextPageToken() {
+      return nextPageToken;
+    }
+
+    public String getETag() {
+      return etag;
+    }
+  }
+
+  /**
+   * @param type either "class" or "object"
+   * @return the cached class or object, or null if it is not cached
+   */
+  public static GenericJson getResource(String issuerId, String type, String id) {
+    Entry entry = entries.getIfPresent(issuerId + RESOURCE + type + ":" + id);
+    return entry == null ? null : (GenericJson) entry.value;
+  }
+
+  /**
+   * Caches a class or object read from the API unless a newer version is already cached.
+   */
+  public static void putResource(String issuerId, GenericJson resource) {
+    if (resource != null) {
+      putResource(issuerId, resource, estimateBytes(resource));
+    }
+  }
+
+  private static void putResource(String issuerId, GenericJson resource, int size) {
+    if (resource.get("id") == null || KindIndex.type(resource) == null) {
+      return;
+    }
+    String key = issuerId + RESOURCE + KindIndex.type(resource) + ":" + resource.get("id");
+    Entry cached = entries.asMap().get(key);
+    if (cached != null && isNewer((GenericJson) cached.value, resource)) {
+      return;
+    }
+    put(key, resource, size);
+  }
+
+  /**
+   * @param name identifies the list within the issuer, e.g. "classlist"
+   * @return the cached list, or null if it is not cached
+   */
+  public static CachedList getList(String issuerId, String name) {
+    Entry entry = entries.getIfPresent(issuerId + LIST + name);
+    return entry == null ? null : (CachedList) entry.value;
+  }
+
+  /**
+   * @return the issuer's generation, which each local save moves on. Read it before requesting a
+   *     list and pass it to putList.
+   */
+  public static long generation(String issuerId) {
+    AtomicLong generation = generations.get(issuerId);
+    return generation == null ? 0 : generation.get();
+  }
+
+  /**
+   * Caches a list read from the API and each resource in it. Resources that were saved locally with
+   * a newer version since the list was requested are replaced by the newer version. The list itself
+   * is not cached if the issuer saved anything since the generation was read, as it may be missing
+   * the saved resources.
+   *
+   * @param generation the issuer's generation read before the list was requested
+   * @return the list as merged
+   */
+  public static List<GenericJson> putList(String issuerId, String name,
+      List<? extends GenericJson> resources, String nextPageToken, long generation) {
+    List<GenericJson> merged = new ArrayList<GenericJson>(resources.size());
+    int listSize = 0;
+    for (GenericJson resource : resources) {
+      GenericJson cached = peek(issuerId, resource);
+      if (cached != null && isNewer(cached, resource)) {
+        merged.add(cached);
+        listSize += estimateBytes(cached);
+      } else {
+        int size = estimateBytes(resource);
+        putResource(issuerId, resource, size);
+        merged.add(resource);
+        listSize += size;
+      }
+    }
+    merged = Collections.unmodifiableList(merged);
+    if (generation(issuerId) != generation) {
+      return merged;
+    }
+    // Registered first so a save from now on drops the list, and checked again for a save made
+    // before it was registered
+    String key = issuerId + LIST + name;
+    listKeys(issuerId).add(key);
+    put(key, new CachedList(merged, nextPageToken), listSize);
+    if (generation(issuerId) != generation) {
+      entries.invalidate(key);
+    }
+    return merged;
+  }
+
+  /**
+   * Records a class or object returned by a local save. The saved version replaces any cached one
+   * and the issuer's lists are dropped, since they no longer match.
+   */
+  public static void update(String issuerId, GenericJson resource) {
+    updateAll(issuerId, Collections.singletonList(resource));
+  }
+
+  /**
+   * Records several saved classes or objects, dropping the issuer's lists once.
+   */
+  public static void updateAll(String issuerId, Collection<? extends GenericJson> resources) {
+    if (issuerId == null) {
+      return;
+    }
+    for (GenericJson resource : resources) {
+      putResource(issuerId, resource);
+    }
+    AtomicLong generation = generations.get(issuerId);
+    if (generation == null) {
+      AtomicLong created = new AtomicLong();
+      generation = generations.putIfAbsent(issuerId, created);
+      if (generation == null) {
+        generation = created;
+      }
+    }
+    generation.incrementAndGet();
+    Set<String> keys = listKeys.get(issuerId);
+    if (keys != null) {
+      for (String key : keys) {
+        keys.remove(key);
+        entries.invalidate(key);
+      }
+    }
+  }
+
+  /**
+   * @return hit and miss counts of the cache
+   */
+  public static CacheStats getStats() {
+    return entries.stats();
+  }
+
+  /**
+   * @return estimated size of the cached entries in bytes, from the characters and number of their
+   *     fields. A resource held both on its own and in a list is counted twice.
+   */
+  public static long getEstimatedBytes() {
+    return bytes.get();
+  }
+
+  public static long size() {
+    return entries.size();
+  }
+
+  private static Set<String> listKeys(String issuerId) {
+    Set<String> keys = listKeys.get(issuerId);
+    if (keys == null) {
+      Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+      keys = listKeys.putIfAbsent(issuerId, created);
+      if (keys == null) {
+        keys = created;
+      }
+    }
+    return keys;
+  }
+
+  private static void put(String key, Object value, int size) {
+    Entry entry = new Entry(value, size);
+    bytes.addAndGet(entry.bytes);
+    entries.put(key, entry);
+  }
+
+  // Cached version of the resource, without counting as a hit or miss
+  private static GenericJson peek(String issuerId, GenericJson resource) {
+    if (resource.get("id") == null || KindIndex.type(resource) == null) {
+      return null;
+    }
+    Entry entry = entries.asMap().get(
+        issuerId + RESOURCE + KindIndex.type(resource) + ":" + resource.get("id"));
+    return entry == null ? null : (GenericJson) entry.value;
+  }
+
+  // True if the cached resource has a higher version than the other one
+  private static boolean isNewer(GenericJson cached, GenericJson other) {
+    Object cachedVersion = cached.get("version");
+    Object otherVersion = other.get("version");
+    return cachedVersion instanceof Number && otherVersion instanceof Number
+        && ((Number) cachedVersion).longValue() > ((Number) otherVersion).longValue();
+  }
+
+  // Two bytes per character of each name and string, plus a fixed amount per value, found by
+  // walking the fields rather than serializing them
+  private static int estimateBytes(Object value) {
+    int size = VALUE_BYTES;
+    if (value instanceof CharSequence) {
+      size += ((CharSequence) value).length() * 2;
+    } else if (value instanceof Map) {
+      for (Map.Entry<?, ?> field : ((Map<?, ?>) value).entrySet()) {
+        size += estimateBytes(field.getKey()) + estimateBytes(field.getValue());
+      }
+    } else if (value instanceof Collection) {
+      for (Object element : (Collection<?>) value) {
+        size += estimateBytes(element);
+      }
+    }
+    return size;
+  }
+
+  private static class Entry {
+    final Object value;
+    final int bytes;
+
+    Entry(Object value, int bytes) {
+      this.value = value;
+      this.bytes = bytes;
+    }
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+import com.google.api.client.json.GenericJson;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A list response serialized once to UTF-8 and written to the response output stream without going
+ * through a Writer. Responses with an ETag are cached by list name, and a cached response is reused
+ * for as long as its list still has the same ETag, so an unchanged list is not serialized again.
+ * The cache holds at most RESPONSE_CACHE_MAX_BYTES; 0 turns it off.
+ *
+ * <p>A gzip copy is made the first time a request accepts gzip, and cached with the response so
+ * it is only compressed once. With the cache off nothing is compressed here, as every response
+ * would be compressed again and the App Engine frontend already compresses for clients that accept
+ * gzip.
+ */
+public class ResponseBytes {
+  // Smaller responses are not worth compressing
+  private static final int GZIP_MIN_BYTES = 512;
+
+  private static final long MAX_BYTES = Long.getLong("RESPONSE_CACHE_MAX_BYTES", 8L * 1024 * 1024);
+
+  private static final AtomicLong bytes = new AtomicLong();
+
+  // A cached response whose ETag no longer matches counts as a miss
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+
+  private static final Cache<String, ResponseBytes> cache = CacheBuilder.newBuilder()
+      .maximumWeight(MAX_BYTES)
+      .weigher(new Weigher<String, ResponseBytes>() {
+        @Override
+        public int weigh(String key, ResponseBytes value) {
+          return value.size();
+        }
+      })
+      .removalListener(new RemovalListener<String, ResponseBytes>() {
+        @Override
+        public void onRemoval(RemovalNotification<String, ResponseBytes> notification) {
+          bytes.addAndGet(-notification.getValue().size());
+        }
+      })
+      .recordStats()
+      .build();
+
+  private final String key;
+  private final String etag;
+  private final byte[] utf8;
+  private final byte[] gzip;
+  // This response with its gzip copy, once a request has accepted gzip
+  private volatile ResponseBytes compressed;
+
+  private ResponseBytes(String key, String etag, byte[] utf8, byte[] gzip, boolean compressed) {
+    this.key = key;
+    this.etag = etag;
+    this.utf8 = utf8;
+    this.gzip = gzip;
+    this.compressed = compressed ? this : null;
+  }
+
+  /**
+   * @param key names the list, e.g. "classlist:" and the issuer id
+   * @param etag ETag of the resources, or null if the response is not to be cached
+   * @return the resources as a JSON array
+   */
+  static ResponseBytes array(String key, String etag,
+      Collection<? extends GenericJson> resources) throws IOException {
+    ResponseBytes cached = get(key, etag);
+    if (cached != null) {
+      return cached;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Writer writer = new OutputStreamWriter(out, Charsets.UTF_8);
+    JsonResponseWriter.writeArray(writer, resources);
+    return put(new ResponseBytes(key, etag, out.toByteArray(), null, false));
+  }
+
+  /**
+   * @param key names the list, e.g. "classlist:" and the issuer id
+   * @param etag ETag of the resource, or null if the response is not to be cached
+   * @return the resource as a JSON object
+   */
+  static ResponseBytes object(String key, String etag, GenericJson resource) throws IOException {
+    ResponseBytes cached = get(key, etag);
+    if (cached != null) {
+      return cached;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Writer writer = new OutputStreamWriter(out, Charsets.UTF_8);
+    JsonResponseWriter.writeObject(writer, resource);
+    return put(new ResponseBytes(key, etag, out.toByteArray(), null, false));
+  }
+
+  /**
+   * @return the body, which is not cached
+   */
+  static ResponseBytes of(String body) {
+    return new ResponseBytes(null, null, body.getBytes(Charsets.UTF_8), null, false);
+  }
+
+  /**
+   * Writes the body, compressed if the request accepts gzip and the cache is on.
+   */
+  void write(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    byte[] body = utf8;
+    if (MAX_BYTES > 0 && utf8.length >= GZIP_MIN_BYTES) {
+      resp.setHeader("Vary", "Accept-Encoding");
+      if (acceptsGzip(req.getHeader("Accept-Encoding"))) {
+        byte[] gzipped = compress().gzip;
+        if (gzipped != null) {
+          resp.setHeader("Content-Encoding", "gzip");
+          body = gzipped;
+        }
+      }
+    }
+    resp.setContentLength(body.length);
+    resp.getOutputStream().write(body);
+  }
+
+  /**
+   * @return hit and miss counts of the cache
+   */
+  public static CacheStats getStats() {
+    return new CacheStats(hits.get(), misses.get(), 0, 0, 0, cache.stats().evictionCount());
+  }
+
+  /**
+   * @return size of the cached responses in bytes
+   */
+  public static long getCachedBytes() {
+    return bytes.get();
+  }
+
+  private static ResponseBytes get(String key, String etag) {
+    if (etag == null) {
+      return null;
+    }
+    ResponseBytes cached = cache.asMap().get(key);
+    if (cached != null && etag.equals(cached.etag)) {
+      hits.incrementAndGet();
+      return cached;
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  private static ResponseBytes put(ResponseBytes value) {
+    if (value.etag != null) {
+      bytes.addAndGet(value.size());
+      cache.put(value.key, value);
+    }
+    return value;
+  }
+
+  // This response with a gzip copy, or none if it does not compress, replacing it in the cache
+  private ResponseBytes compress() throws IOException {
+    ResponseBytes result = compressed;
+    if (result != null) {
+      return result;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(utf8.length / 4);
+    GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+    gzipOut.write(utf8);
+    gzipOut.close();
+    result = new ResponseBytes(key, etag, utf8,
+        out.size() < utf8.length ? out.toByteArray() : null, true);
+    compressed = result;
+    if (etag != null && cache.asMap().replace(key, this, result)) {
+      bytes.addAndGet(result.size());
+    }
+    return result;
+  }
+
+  // Accept-Encoding lists gzip, or *, without q=0
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : Splitter.on(',').trimResults().split(acceptEncoding)) {
+      int semicolon = coding.indexOf(';');
+      String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+      if (name.equalsIgnoreCase("gzip") || name.equals("*")) {
+        return semicolon < 0 || !coding.substring(semicolon + 1).trim().matches("q=0(\\.0*)?");
+      }
+    }
+    return false;
+  }
+
+  private int size() {
+    return utf8.length + (gzip == null ? 0 : gzip.length);
+  }
+}
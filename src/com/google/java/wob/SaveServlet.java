@@ -48,7 +48,7 @@ public class SaveServlet extends HttpServlet {
     Walletobjects client = ClientMethods.getClientForId(req.getParameter("issuerId"));
     if (client == null) {
       log.warning("Unable to get client for issuer id " + req.getParameter("issuerId"));
-      resp.getWriter().write(ClientMethods.createError(null));
+      ClientMethods.writeError(resp, null);
       return;
     }
 
@@ -56,7 +56,7 @@ public class SaveServlet extends HttpServlet {
     String json = req.getParameter("json");
     if (Strings.isNullOrEmpty(kind) || Strings.isNullOrEmpty(json)) {
       log.warning("Unable to update or insert without both kind and json.");
-      resp.getWriter().write(ClientMethods.createError(null));
+      ClientMethods.writeError(resp, null);
       return;
     }
 
@@ -68,81 +68,77 @@ public class SaveServlet extends HttpServlet {
         OfferClass offerClass = jsonFactory.fromString(json, OfferClass.class);
         offerClass.setVersion(offerClass.getVersion() + 1);
         if (offerClass.getVersion() == 1) {
-          client.offerclass().insert(offerClass).execute();
+          updated = client.offerclass().insert(offerClass).execute();
           log.info("Offer class was inserted");
         } else {
-          client.offerclass().update(offerClass.getId(), offerClass).execute();
+          updated = client.offerclass().update(offerClass.getId(), offerClass).execute();
           log.info("Offer class was updated");
         }
-        updated = client.offerclass().get(offerClass.getId()).execute();
 
       } else if (kind.contains("loyaltyClass")) {
         LoyaltyClass loyaltyClass = jsonFactory.fromString(json, LoyaltyClass.class);
         loyaltyClass.setVersion(loyaltyClass.getVersion() + 1);
         if (loyaltyClass.getVersion() == 1) {
-          client.loyaltyclass().insert(loyaltyClass).execute();
+          updated = client.loyaltyclass().insert(loyaltyClass).execute();
           log.info("Loyalty class was inserted.");
         } else {
-          client.loyaltyclass().update(loyaltyClass.getId(), loyaltyClass).execute();
+          updated = client.loyaltyclass().update(loyaltyClass.getId(), loyaltyClass).execute();
           log.info("Loyalty class was updated.");
         }
-        updated = client.loyaltyclass().get(loyaltyClass.getId()).execute();
 
       } else if (kind.contains("genericClass")) {
         GenericClass genericClass = jsonFactory.fromString(json, GenericClass.class);
         genericClass.setVersion(genericClass.getVersion() + 1);
         if (genericClass.getVersion() == 1) {
-          client.genericclass().insert(genericClass).execute();
+          updated = client.genericclass().insert(genericClass).execute();
           log.info("Generic class was inserted.");
         } else {
-          client.genericclass().update(genericClass.getId(), genericClass).execute();
+          updated = client.genericclass().update(genericClass.getId(), genericClass).execute();
           log.info("Generic class was updated.");
         }
-        updated = client.genericclass().get(genericClass.getId()).execute();
 
       } else if (kind.contains("offerObject")) {
         OfferObject offerObject = jsonFactory.fromString(json, OfferObject.class);
         offerObject.setVersion(offerObject.getVersion() + 1);
-        client.offerobject().update(offerObject.getId(), offerObject).execute();
-        updated = client.offerobject().get(offerObject.getId()).execute();
+        updated = client.offerobject().update(offerObject.getId(), offerObject).execute();
         log.info("Offer object was patched.");
 
       } else if (kind.contains("loyaltyObject")) {
         LoyaltyObject loyaltyObject = jsonFactory.fromString(json, LoyaltyObject.class);
         loyaltyObject.setVersion(loyaltyObject.getVersion() + 1);
-        client.loyaltyobject().update(loyaltyObject.getId(), loyaltyObject).execute();
-        updated = client.loyaltyobject().get(loyaltyObject.getId()).execute();
+        updated = client.loyaltyobject().update(loyaltyObject.getId(), loyaltyObject).execute();
         log.info("Loyalty object was patched.");
 
       } else if (kind.contains("genericObject")) {
         GenericObject genericObject = jsonFactory.fromString(json, GenericObject.class);
         genericObject.setVersion(genericObject.getVersion() + 1);
-        client.genericobject().update(genericObject.getId(), genericObject).execute();
-        updated = client.genericobject().get(genericObject.getId()).execute();
+        updated = client.genericobject().update(genericObject.getId(), genericObject).execute();
         log.info("Generic object was patched.");
 
       } else {
         log.warning("Unable to update or insert with invalid kind " + kind + ".");
-        resp.getWriter().write(ClientMethods.createError(null));
+        ClientMethods.writeError(resp, null);
         return;
       }
     } catch (GoogleJsonResponseException e) {
       log.warning("Insert or update failed: " + e.getMessage());
-      resp.getWriter()
-          .write(ClientMethods.createError("Something went wrong, please refresh and try again"));
+      ClientMethods.writeError(resp, "Something went wrong, please refresh and try again");
       return;
     } catch (IllegalArgumentException e) {
       log.warning("Invalid json: " + e.getMessage());
-      resp.getWriter().write(ClientMethods.createError(null));
+      ClientMethods.writeError(resp, null);
       return;
     }
 
-    if (Strings.isNullOrEmpty(updated.toString())) {
+    if (updated == null || Strings.isNullOrEmpty(updated.toString())) {
       log.warning("Unable to verify update due to unknown error");
-      resp.getWriter().write(ClientMethods.createError("Unable to verify save, please refresh."));
+      ClientMethods.writeError(resp, "Unable to verify save, please refresh.");
       return;
     }
 
+    KindIndex.record(updated);
+    ResourceCache.update(req.getParameter("issuerId"), updated);
+
     // Return the JSON of the updated object
     resp.getWriter().write(updated.toString());
   }
@@ -19,6 +19,7 @@ import com.google.api.services.walletobjects.model.GenericObject;
 import com.google.api.services.walletobjects.model.LoyaltyObject;
 import com.google.api.services.walletobjects.model.OfferObject;
 import com.google.common.base.Strings;
+import com.google.java.wob.utils.WobJwtCache;
 import com.google.java.wob.utils.WobPayload;
 import com.google.java.wob.utils.WobUtils;
 
@@ -66,7 +67,7 @@ public class SaveToWalletServlet extends HttpServlet {
     if (Strings.isNullOrEmpty(kind) || Strings.isNullOrEmpty(json)
         || Strings.isNullOrEmpty(sOrigins)) {
       log.warning("Unable to generate JWT without kind, json and origins.");
-      resp.getWriter().write(ClientMethods.createError(null));
+      ClientMethods.writeError(resp, null);
       return;
     }
 
@@ -89,15 +90,20 @@ public class SaveToWalletServlet extends HttpServlet {
       payload.addObject(genericObject);
     } else {
       log.warning("Unable to generate JWT with invalid kind " + kind + ".");
-      resp.getWriter().write(ClientMethods.createError(null));
+      ClientMethods.writeError(resp, null);
     }
 
     try {
-      jwtWithOrigins = util.generateSaveJwt(payload, origins);
       String url = req.getRequestURL().toString();
       // get user's url and ignore jwt at end
       url = url.substring(0, url.length() - 3);
-      jwtWithUrl = util.generateSaveJwt(payload, Arrays.asList(url));
+      List<List<String>> originLists = new ArrayList<List<String>>();
+      originLists.add(origins);
+      originLists.add(Arrays.asList(url));
+      // both JWTs come from the cache or are signed concurrently
+      List<String> jwts = WobJwtCache.getSaveJwts(util, payload, originLists);
+      jwtWithOrigins = jwts.get(0);
+      jwtWithUrl = jwts.get(1);
     } catch (SignatureException e) {
       log.warning("Unable to generate JWT: " + e.getMessage());
     }
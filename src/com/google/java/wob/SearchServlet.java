@@ -16,14 +16,21 @@ package com.google.java.wob;
 
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.json.GenericJson;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.walletobjects.Walletobjects;
 import com.google.common.base.Strings;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonParser;
+import com.google.java.wob.utils.WobExecutors;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServlet;
@@ -45,7 +52,7 @@ public class SearchServlet extends HttpServlet {
     Walletobjects client = ClientMethods.getClientForId(issuerId);
     if (client == null) {
       log.warning("Unable to get client for issuer id " + issuerId + ".");
-      resp.getWriter().write(ClientMethods.createError(null));
+      ClientMethods.writeError(resp, null);
       return;
     }
 
@@ -53,50 +60,124 @@ public class SearchServlet extends HttpServlet {
     String kind = req.getParameter("kind");
     if (Strings.isNullOrEmpty(kind)) {
       log.warning("Unable to continue without kind of class or object.");
-      resp.getWriter().write(ClientMethods.createError(null));
+      ClientMethods.writeError(resp, null);
+      return;
+    }
+
+    if (!kind.equals(KindIndex.CLASS) && !kind.equals(KindIndex.OBJECT)) {
+      log.warning("Unknown kind " + kind);
+      ClientMethods.writeError(resp, null);
       return;
     }
 
     // Attempt to find class or object with specified id
-    GenericJson result = null;
-    JsonArray array = new JsonArray();
-    JsonFactory jsonFactory = new GsonFactory();
-    JsonParser parser = new JsonParser();
-    if (kind.equals("class")) {
-      try {
-        result = client.offerclass().get(query).execute();
-      } catch (GoogleJsonResponseException e) {
-      }
-      try {
-        result = client.loyaltyclass().get(query).execute();
-      } catch (GoogleJsonResponseException e) {
-      }
-      try {
-        result = client.genericclass().get(query).execute();
-      } catch (GoogleJsonResponseException e) {
-      }
-    } else if (kind.equals("object")) {
-      try {
-        result = client.offerobject().get(query).execute();
-      } catch (GoogleJsonResponseException e) {
-      }
+    GenericJson result = ResourceCache.getResource(issuerId, kind, query);
+    if (result == null && !KindIndex.isKnownMissing(kind, query)) {
+      result = find(getCalls(client, kind, query), kind, query);
+      ResourceCache.putResource(issuerId, result);
+    }
+
+    if (result != null) {
+      JsonResponseWriter.writeArray(resp.getWriter(), Collections.singletonList(result));
+    }
+  }
+
+  // Uses the indexed vertical if the id is known, otherwise tries every vertical at once and takes
+  // the first one to find the id
+  private static GenericJson find(Map<String, Callable<GenericJson>> calls, String kind,
+      String query) {
+    String vertical = KindIndex.lookup(kind, query);
+    if (vertical != null && calls.containsKey(vertical)) {
       try {
-        result = client.loyaltyobject().get(query).execute();
-      } catch (GoogleJsonResponseException e) {
+        return calls.get(vertical).call();
+      } catch (Exception e) {
+        log.warning("Indexed " + vertical + " " + kind + " lookup failed: " + e.getMessage());
+        KindIndex.forget(kind, query);
       }
-      try {
-        result = client.genericobject().get(query).execute();
-      } catch (GoogleJsonResponseException e) {
+    }
+
+    // invokeAny only reports one of the failures, so the 404s are counted as they happen
+    final AtomicInteger notFound = new AtomicInteger();
+    List<Callable<GenericJson>> counted = new ArrayList<Callable<GenericJson>>();
+    for (final Callable<GenericJson> call : calls.values()) {
+      counted.add(new Callable<GenericJson>() {
+        @Override
+        public GenericJson call() throws Exception {
+          try {
+            return call.call();
+          } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() == 404) {
+              notFound.incrementAndGet();
+            }
+            throw e;
+          }
+        }
+      });
+    }
+
+    try {
+      GenericJson result = WobExecutors.upstream().invokeAny(counted,
+          WobExecutors.upstreamTimeoutMillis(), TimeUnit.MILLISECONDS);
+      KindIndex.record(result);
+      return result;
+    } catch (ExecutionException e) {
+      // Every call has failed; the id is only missing if none of the verticals has it
+      if (notFound.get() == counted.size()) {
+        KindIndex.recordMissing(kind, query);
+      } else {
+        log.warning("Search for " + query + " failed: " + e.getCause());
       }
-    } else {
-      log.warning("Unknown kind " + kind);
-      resp.getWriter().write(ClientMethods.createError(null));
+    } catch (TimeoutException e) {
+      log.warning("Search for " + query + " timed out");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
+    return null;
+  }
 
-    if (result != null) {
-      result.setFactory(jsonFactory);
-      array.add(parser.parse(result.toString()));
-      resp.getWriter().write(array.toString());
+  // One get call per vertical for the kind of resource searched for
+  private static Map<String, Callable<GenericJson>> getCalls(final Walletobjects client,
+      String kind, final String query) {
+    Map<String, Callable<GenericJson>> calls = new LinkedHashMap<String, Callable<GenericJson>>();
+    if (kind.equals(KindIndex.CLASS)) {
+      calls.put("offer", new Callable<GenericJson>() {
+        @Override
+        public GenericJson call() throws IOException {
+          return client.offerclass().get(query).execute();
+        }
+      });
+      calls.put("loyalty", new Callable<GenericJson>() {
+        @Override
+        public GenericJson call() throws IOException {
+          return client.loyaltyclass().get(query).execute();
+        }
+      });
+      calls.put("generic", new Callable<GenericJson>() {
+        @Override
+        public GenericJson call() throws IOException {
+          return client.genericclass().get(query).execute();
+        }
+      });
+    } else {
+      calls.put("offer", new Callable<GenericJson>() {
+        @Override
+        public GenericJson call() throws IOException {
+          return client.offerobject().get(query).execute();
+        }
+      });
+      calls.put("loyalty", new Callable<GenericJson>() {
+        @Override
+        public GenericJson call() throws IOException {
+          return client.loyaltyobject().get(query).execute();
+        }
+      });
+      calls.put("generic", new Callable<GenericJson>() {
+        @Override
+        public GenericJson call() throws IOException {
+          return client.genericobject().get(query).execute();
+        }
+      });
     }
+    return calls;
   }
 }
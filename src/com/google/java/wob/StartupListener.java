@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+import com.google.common.base.Strings;
+import com.google.java.wob.utils.WobHttpTransport;
+import com.google.java.wob.utils.WobKeyRegistry;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Loads shared state, such as the service account key and the HTTP transport, when the application
+ * starts so the first request does not pay for it.
+ */
+public class StartupListener implements ServletContextListener {
+  private static final Logger log = Logger.getLogger(StartupListener.class.getName());
+
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+    // Logs whether WALLETOBJECTS_FAKE is in effect as the app starts
+    WobHttpTransport.isFake();
+
+    String keyPath = System.getProperty("PRIVATE_KEY");
+    if (Strings.isNullOrEmpty(keyPath)) {
+      log.warning("No private key configured");
+      return;
+    }
+
+    try {
+      WobKeyRegistry.preload(keyPath);
+    } catch (IOException e) {
+      log.warning("Unable to load private key: " + e.getMessage());
+    } catch (GeneralSecurityException e) {
+      log.warning("Unable to load private key: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+  }
+}
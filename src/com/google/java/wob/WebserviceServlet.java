@@ -0,0 +1,225 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.java.wob.utils.WobExecutors;
+import com.google.java.wob.utils.WobMetrics;
+import com.google.java.wob.utils.WobUtils;
+import com.google.java.wob.webservice.LoyaltyWebserviceHandler;
+import com.google.java.wob.webservice.WebserviceHandler;
+import com.google.java.wob.webservice.WebserviceRequest;
+import com.google.java.wob.webservice.WebserviceRequestReader;
+import com.google.java.wob.webservice.WebserviceResponse;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.security.SignatureException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Answers the webservice callback made when a user links an account or signs up from their wallet,
+ * at /webservice?issuerId=. The request body is read as a stream, link and signup are passed to the
+ * WebserviceHandler, and the signed response JWT is written back.
+ *
+ * <p>The caller gives up after a fixed time, so a handler still running after
+ * WEBSERVICE_TIMEOUT_MILLIS is abandoned and the user is asked to try again, as they are when all
+ * WEBSERVICE_THREADS handler threads are busy. The latency of each method is recorded, along with
+ * how many calls took longer than WEBSERVICE_SLO_MILLIS.
+ */
+public class WebserviceServlet extends HttpServlet {
+  private static final Logger log = Logger.getLogger(WebserviceServlet.class.getName());
+
+  static final String LINK = "link";
+  static final String SIGNUP = "signup";
+  // Recorded for requests that are not a valid link or signup
+  static final String INVALID = "invalid";
+
+  private static final String APPROVED = "approved";
+  private static final String REJECTED = "rejected";
+
+  private static final long TIMEOUT_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(Long.getLong("WEBSERVICE_TIMEOUT_MILLIS", 2000L));
+  static final double SLO_SECONDS = Long.getLong("WEBSERVICE_SLO_MILLIS", 1000L) / 1000.0;
+
+  private static final WebserviceRequestReader reader =
+      new WebserviceRequestReader(new GsonFactory());
+  private static final WebserviceHandler handler = createHandler();
+
+  // Signing utils keyed by issuer id, so the key is only loaded once per issuer
+  private static final LoadingCache<String, WobUtils> utils = CacheBuilder.newBuilder()
+      .maximumSize(Long.getLong("CLIENT_CACHE_SIZE", 100L))
+      .build(new CacheLoader<String, WobUtils>() {
+        @Override
+        public WobUtils load(String issuerId) throws Exception {
+          return new WobUtils(ClientMethods.createCredentials(issuerId));
+        }
+      });
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    long start = System.nanoTime();
+    String method = INVALID;
+    boolean failed = true;
+    try {
+      resp.setContentType("text/plain; charset=utf-8");
+
+      String issuerId = req.getParameter("issuerId");
+      WobUtils util = getUtils(issuerId);
+      if (util == null) {
+        // Without the key there is no way to sign a response
+        resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        WobMetrics.markError();
+        return;
+      }
+
+      WebserviceRequest request = null;
+      try {
+        request = reader.read(req.getInputStream());
+      } catch (IOException e) {
+        log.warning("Unable to read webservice request: " + e.getMessage());
+      }
+
+      WebserviceResponse response = null;
+      GenericJson object = null;
+      if (request == null || request.getParams() == null
+          || !(LINK.equals(request.getMethod()) || SIGNUP.equals(request.getMethod()))) {
+        log.warning("Invalid webservice request for issuer " + issuerId);
+      } else {
+        method = request.getMethod();
+        WebserviceResponse handled = new WebserviceResponse(null, APPROVED);
+        try {
+          object = dispatch(issuerId, request, handled, start);
+          // A handler may only approve with an object
+          if (object != null || REJECTED.equals(handled.getResult())) {
+            response = handled;
+            failed = false;
+          }
+        } catch (IOException e) {
+          log.warning("Webservice " + method + " for issuer " + issuerId + " " + e.getMessage());
+        }
+      }
+      if (response == null) {
+        object = null;
+        response = new WebserviceResponse("Something went wrong, please try again.", REJECTED);
+      }
+
+      String jwt;
+      try {
+        jwt = object == null ? util.generateWebserviceFailureResponseJwt(response)
+            : util.generateWebserviceResponseJwt(object, response);
+      } catch (SignatureException e) {
+        log.warning("Unable to sign webservice response: " + e.getMessage());
+        resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        WobMetrics.markError();
+        failed = true;
+        return;
+      }
+      if (failed) {
+        WobMetrics.markError();
+      }
+      resp.getWriter().write(jwt);
+    } finally {
+      WobMetrics.webservice(method).record(System.nanoTime() - start, failed);
+    }
+  }
+
+  // Runs the handler within what is left of the timeout, failing at once if the webservice pool is
+  // busy
+  private static GenericJson dispatch(final String issuerId, final WebserviceRequest request,
+      final WebserviceResponse response, long start) throws IOException {
+    Future<GenericJson> result;
+    try {
+      result = WobExecutors.webservice().submit(new Callable<GenericJson>() {
+        @Override
+        public GenericJson call() throws IOException {
+          if (LINK.equals(request.getMethod())) {
+            return handler.link(issuerId, request.getParams(), response);
+          }
+          return handler.signup(issuerId, request.getParams(), response);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      throw new IOException("rejected, all webservice threads are busy");
+    }
+    try {
+      return result.get(TIMEOUT_NANOS - (System.nanoTime() - start), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      result.cancel(true);
+      throw new IOException("timed out");
+    } catch (ExecutionException e) {
+      throw new IOException("failed: " + e.getCause(), e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      result.cancel(true);
+      throw new IOException("interrupted");
+    }
+  }
+
+  private static WobUtils getUtils(String issuerId) {
+    if (Strings.isNullOrEmpty(issuerId)) {
+      log.warning("No issuer id");
+      return null;
+    }
+    try {
+      return utils.get(issuerId);
+    } catch (ExecutionException e) {
+      log.warning(e.getCause().getMessage());
+    } catch (UncheckedExecutionException e) {
+      log.warning(e.getCause().getMessage());
+    }
+    return null;
+  }
+
+  // The class named by WEBSERVICE_HANDLER, or the default handler, which rejects every link, if it
+  // is not set or invalid
+  private static WebserviceHandler createHandler() {
+    String name = System.getProperty("WEBSERVICE_HANDLER");
+    if (!Strings.isNullOrEmpty(name)) {
+      try {
+        return (WebserviceHandler) Class.forName(name).getDeclaredConstructor().newInstance();
+      } catch (ClassNotFoundException e) {
+        log.severe("Webservice handler " + name + " not found");
+      } catch (NoSuchMethodException e) {
+        log.severe("Webservice handler " + name + " has no no-argument constructor");
+      } catch (InvocationTargetException e) {
+        log.severe("Unable to create webservice handler " + name + ": " + e.getCause());
+      } catch (InstantiationException e) {
+        log.severe("Unable to create webservice handler " + name + ": " + e.getMessage());
+      } catch (IllegalAccessException e) {
+        log.severe("Unable to create webservice handler " + name + ": " + e.getMessage());
+      } catch (ClassCastException e) {
+        log.severe(name + " is not a WebserviceHandler");
+      }
+    }
+    return new LoyaltyWebserviceHandler();
+  }
+}
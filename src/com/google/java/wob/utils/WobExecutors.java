@@ -0,0 +1,225 @@
+package com.google.java.wob.utils;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Bounded thread pools for running Walletobjects calls concurrently. The
+ * upstream pool has UPSTREAM_THREADS threads and a queue of
+ * UPSTREAM_QUEUE_SIZE tasks; once both are full the submitting thread runs the
+ * call itself, so load is never dropped. Each batch of calls is limited to
+ * UPSTREAM_TIMEOUT_SECONDS.
+ *
+ * CPU bound work such as JWT signing runs on a separate pool of
+ * SIGNING_THREADS threads, one per core by default, so it does not compete
+ * with threads blocked on the network.
+ *
+ * Webservice handlers run on their own pool of WEBSERVICE_THREADS threads
+ * with no queue. A handler that finds every thread busy is rejected at once
+ * with RejectedExecutionException, since the caller would rather be asked to
+ * try again than wait past its timeout. On App Engine, where each request has
+ * its own pools, the instance's limit on concurrent requests bounds them too.
+ *
+ * App Engine only lets a request start threads through ThreadManager, and
+ * those threads end with the request. Between beginRequest and endRequest,
+ * which RequestExecutorsFilter calls around every request, the pools therefore
+ * belong to the request: they are created when first used, with
+ * ThreadManager.currentRequestThreadFactory() on App Engine, and shut down
+ * when the request ends. Outside a request the pools are shared by the
+ * process, for tests and benchmarks, except on App Engine where the calls run
+ * on the calling thread.
+ *
+ */
+public class WobExecutors {
+  private static final int THREADS = Integer.getInteger("UPSTREAM_THREADS", 32);
+  private static final int QUEUE_SIZE =
+      Integer.getInteger("UPSTREAM_QUEUE_SIZE", 256);
+  private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(
+      Long.getLong("UPSTREAM_TIMEOUT_SECONDS", 20L));
+
+  private static final int SIGNING_THREADS = Integer.getInteger(
+      "SIGNING_THREADS", Runtime.getRuntime().availableProcessors());
+
+  private static final int WEBSERVICE_THREADS =
+      Integer.getInteger("WEBSERVICE_THREADS", 8);
+
+  // Set on App Engine, where threads must come from ThreadManager
+  private static final boolean APP_ENGINE =
+      System.getProperty("com.google.appengine.runtime.environment") != null;
+
+  // Pools of the request the current thread is working for
+  private static final ThreadLocal<Pools> current = new ThreadLocal<Pools>();
+
+  private static final Pools shared = new Pools();
+
+  /**
+   * The pools of one request, or of the process, created when first used.
+   */
+  private static class Pools {
+    private ExecutorService upstream;
+    private ExecutorService signing;
+    private ExecutorService webservice;
+
+    synchronized ExecutorService upstream() {
+      if (upstream == null) {
+        upstream = newPool(this, THREADS, "upstream-%d",
+            new LinkedBlockingQueue<Runnable>(QUEUE_SIZE),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+      }
+      return upstream;
+    }
+
+    synchronized ExecutorService signing() {
+      if (signing == null) {
+        signing = newPool(this, SIGNING_THREADS, "signing-%d",
+            new LinkedBlockingQueue<Runnable>(QUEUE_SIZE),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+      }
+      return signing;
+    }
+
+    synchronized ExecutorService webservice() {
+      if (webservice == null) {
+        webservice = newPool(this, WEBSERVICE_THREADS, "webservice-%d",
+            new SynchronousQueue<Runnable>(),
+            new ThreadPoolExecutor.AbortPolicy());
+      }
+      return webservice;
+    }
+
+    synchronized void shutdown() {
+      if (upstream != null) {
+        upstream.shutdownNow();
+      }
+      if (signing != null) {
+        signing.shutdownNow();
+      }
+      if (webservice != null) {
+        webservice.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Gives the current request its own pools, which are only created if it
+   * uses them.
+   */
+  public static void beginRequest() {
+    current.set(new Pools());
+  }
+
+  /**
+   * Shuts down the pools of the current request, interrupting any call still
+   * running, as App Engine does not complete a request until its threads end.
+   */
+  public static void endRequest() {
+    Pools pools = current.get();
+    current.remove();
+    if (pools != null) {
+      pools.shutdown();
+    }
+  }
+
+  /**
+   * @return the executor for upstream calls
+   */
+  public static ExecutorService upstream() {
+    Pools pools = current.get();
+    if (pools == null && APP_ENGINE) {
+      return MoreExecutors.sameThreadExecutor();
+    }
+    return (pools == null ? shared : pools).upstream();
+  }
+
+  /**
+   * @return the executor for CPU bound work such as signing
+   */
+  public static ExecutorService signing() {
+    Pools pools = current.get();
+    if (pools == null && APP_ENGINE) {
+      return MoreExecutors.sameThreadExecutor();
+    }
+    return (pools == null ? shared : pools).signing();
+  }
+
+  /**
+   * @return the executor for webservice handlers, which rejects tasks with
+   *     RejectedExecutionException when all its threads are busy
+   */
+  public static ExecutorService webservice() {
+    Pools pools = current.get();
+    if (pools == null && APP_ENGINE) {
+      return MoreExecutors.sameThreadExecutor();
+    }
+    return (pools == null ? shared : pools).webservice();
+  }
+
+  /**
+   * @return the number of signing threads
+   */
+  public static int signingThreads() {
+    return SIGNING_THREADS;
+  }
+
+  /**
+   * @return how long a batch of upstream calls may take in milliseconds
+   */
+  public static long upstreamTimeoutMillis() {
+    return TIMEOUT_MILLIS;
+  }
+
+  /**
+   * Runs the calls concurrently and waits for all of them, up to the upstream
+   * timeout. Calls still running at the timeout are cancelled, and their
+   * futures throw CancellationException.
+   *
+   * @param calls
+   * @return futures in the same order as the calls
+   * @throws InterruptedException
+   */
+  public static <T> List<Future<T>> invokeAll(List<? extends Callable<T>> calls)
+      throws InterruptedException {
+    return upstream().invokeAll(calls, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  // Threads of the pool work for the same request as the thread that created
+  // it, so the calls they make use the request's pools too
+  private static ExecutorService newPool(final Pools pools, int threads,
+      String nameFormat, BlockingQueue<Runnable> queue,
+      RejectedExecutionHandler rejected) {
+    final ThreadFactory factory = APP_ENGINE
+        ? ThreadManager.currentRequestThreadFactory()
+        : new ThreadFactoryBuilder().setDaemon(true).setNameFormat(nameFormat)
+            .build();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+        60L, TimeUnit.SECONDS, queue, new ThreadFactory() {
+          @Override
+          public Thread newThread(final Runnable task) {
+            return factory.newThread(new Runnable() {
+              @Override
+              public void run() {
+                if (pools != shared) {
+                  current.set(pools);
+                }
+                task.run();
+              }
+            });
+          }
+        }, rejected);
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+}
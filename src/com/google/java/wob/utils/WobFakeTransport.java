@@ -0,0 +1,429 @@
+package com.google.java.wob.utils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpMediaType;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.Charsets;
+import com.google.api.client.util.IOUtils;
+
+/**
+ * In-memory stand-in for the Walletobjects API and the OAuth token endpoint,
+ * for load testing without using quota. It follows the v1 list, get, insert,
+ * update, patch and addMessage calls for every vertical, as well as batch
+ * requests, and keeps the classes and objects until the process exits.
+ *
+ * Every call waits FAKE_LATENCY_MILLIS plus up to FAKE_LATENCY_JITTER_MILLIS,
+ * and fails with FAKE_ERROR_STATUS at FAKE_ERROR_RATE, a fraction between 0
+ * and 1. A 429 or 403 error has a rateLimitExceeded reason, like the API's.
+ * Setting WALLETOBJECTS_FAKE to true makes WobHttpTransport use it, on the
+ * development server only.
+ *
+ */
+public class WobFakeTransport extends MockHttpTransport {
+  private static final JsonFactory jsonFactory = new GsonFactory();
+
+  private static final String BOUNDARY = "batch_wob_fake";
+  private static final String CRLF = "\r\n";
+
+  private static final WobFakeTransport instance = new WobFakeTransport(
+      Long.getLong("FAKE_LATENCY_MILLIS", 0L),
+      Long.getLong("FAKE_LATENCY_JITTER_MILLIS", 0L),
+      Double.parseDouble(System.getProperty("FAKE_ERROR_RATE", "0")),
+      Integer.getInteger("FAKE_ERROR_STATUS", 503));
+
+  private final long latencyMillis;
+  private final long jitterMillis;
+  private final double errorRate;
+  private final int errorStatus;
+  private final Random random = new Random();
+
+  // Resource type, e.g. "loyaltyObject", to the resources of that type by id
+  private final ConcurrentMap<String, ConcurrentNavigableMap<String, Stored>>
+      resources =
+      new ConcurrentHashMap<String, ConcurrentNavigableMap<String, Stored>>();
+
+  private final AtomicLong calls = new AtomicLong();
+  private final AtomicLong injectedErrors = new AtomicLong();
+
+  /**
+   * @param latencyMillis delay added to every call
+   * @param jitterMillis most random delay added on top of latencyMillis
+   * @param errorRate fraction of calls that fail, between 0 and 1
+   * @param errorStatus status code of the failed calls
+   */
+  public WobFakeTransport(long latencyMillis, long jitterMillis,
+      double errorRate, int errorStatus) {
+    this.latencyMillis = latencyMillis;
+    this.jitterMillis = jitterMillis;
+    this.errorRate = errorRate;
+    this.errorStatus = errorStatus;
+  }
+
+  /**
+   * @return the fake shared by the process, configured by system properties
+   */
+  public static WobFakeTransport get() {
+    return instance;
+  }
+
+  /**
+   * @return number of calls answered, counting each call in a batch
+   */
+  public long getCallCount() {
+    return calls.get();
+  }
+
+  /**
+   * @return number of calls failed on purpose
+   */
+  public long getInjectedErrorCount() {
+    return injectedErrors.get();
+  }
+
+  /**
+   * Removes every stored class and object.
+   */
+  public void clear() {
+    resources.clear();
+  }
+
+  @Override
+  public LowLevelHttpRequest buildRequest(final String method,
+      final String url) {
+    return new MockLowLevelHttpRequest(url) {
+      @Override
+      public LowLevelHttpResponse execute() throws IOException {
+        delay();
+        String body = content(this);
+        if (url.contains("/oauth2/")) {
+          return json(200, "{\"access_token\":\"fake\",\"token_type\":\"Bearer\","
+              + "\"expires_in\":3600}");
+        }
+        if (new GenericUrl(url).getRawPath().endsWith("/batch")) {
+          return batch(body, getContentType());
+        }
+        String override = getFirstHeaderValue("X-HTTP-Method-Override");
+        Reply reply = handle(override != null ? override : method, url, body);
+        return json(reply.status, reply.json);
+      }
+    };
+  }
+
+  // Answers one API call
+  Reply handle(String method, String url, String body) {
+    calls.incrementAndGet();
+    if (errorRate > 0 && random.nextDouble() < errorRate) {
+      injectedErrors.incrementAndGet();
+      return error(errorStatus, errorStatus == 429 || errorStatus == 403
+          ? "rateLimitExceeded" : "backendError", "Injected error");
+    }
+
+    GenericUrl parsed = new GenericUrl(url);
+    List<String> path = parsed.getPathParts();
+    int version = path.indexOf("v1");
+    if (version < 0 || path.size() <= version + 1) {
+      return error(404, "notFound", "Unknown path " + parsed.getRawPath());
+    }
+    String type = path.get(version + 1);
+    String id = path.size() > version + 2 ? path.get(version + 2) : null;
+    String action = path.size() > version + 3 ? path.get(version + 3) : null;
+
+    try {
+      if (id == null && "GET".equals(method)) {
+        return list(type, parsed);
+      } else if (id == null && "POST".equals(method)) {
+        return insert(type, parse(body));
+      } else if (id != null && "addMessage".equals(action)) {
+        return addMessage(type, id, parse(body));
+      } else if (id != null && "GET".equals(method)) {
+        Stored stored = store(type).get(id);
+        return stored == null ? notFound(type, id) : new Reply(200, stored.json);
+      } else if (id != null && "PUT".equals(method)) {
+        return update(type, id, parse(body));
+      } else if (id != null && "PATCH".equals(method)) {
+        return patch(type, id, parse(body));
+      }
+    } catch (IOException e) {
+      return error(400, "parseError", e.getMessage());
+    } catch (IllegalArgumentException e) {
+      return error(400, "parseError", e.getMessage());
+    }
+    return error(400, "invalid", "Unsupported call " + method + " " + url);
+  }
+
+  private Reply list(String type, GenericUrl url) throws IOException {
+    boolean classes = type.endsWith("Class");
+    String owner = (String) url.getFirst(classes ? "issuerId" : "classId");
+    String token = (String) url.getFirst("token");
+    Object maxResults = url.getFirst("maxResults");
+    int limit = maxResults == null ? Integer.MAX_VALUE
+        : Integer.parseInt(maxResults.toString());
+
+    ConcurrentNavigableMap<String, Stored> all = store(type);
+    Map<String, Stored> page = token == null ? all : all.tailMap(token, true);
+    // Like the API, resources is left out when nothing matches
+    StringBuilder resources = new StringBuilder();
+    int count = 0;
+    String next = null;
+    for (Stored stored : page.values()) {
+      boolean owned = classes ? stored.id.startsWith(owner + ".")
+          : owner != null && owner.equals(stored.classId);
+      if (!owned) {
+        continue;
+      }
+      if (count == limit) {
+        next = stored.id;
+        break;
+      }
+      resources.append(count++ == 0 ? "" : ",").append(stored.json);
+    }
+    StringBuilder json = new StringBuilder("{\"kind\":\"walletobjects#")
+        .append(type).append("ListResponse\"");
+    if (count > 0) {
+      json.append(",\"resources\":[").append(resources).append("]");
+    }
+    if (next != null) {
+      json.append(",\"tokenPagination\":{\"kind\":\"walletobjects#tokenPagination\","
+          + "\"resultsPerPage\":").append(count).append(",\"nextPageToken\":")
+          .append(jsonFactory.toString(next)).append("}");
+    }
+    return new Reply(200, json.append("}").toString());
+  }
+
+  private Reply insert(String type, GenericJson resource) throws IOException {
+    String id = (String) resource.get("id");
+    if (id == null) {
+      return error(400, "required", "Missing id");
+    }
+    Stored stored = stored(type, resource);
+    if (store(type).putIfAbsent(id, stored) != null) {
+      return error(409, "duplicate", "Duplicate " + type + " " + id);
+    }
+    return new Reply(200, stored.json);
+  }
+
+  private Reply update(String type, String id, GenericJson resource)
+      throws IOException {
+    resource.put("id", id);
+    Stored stored = stored(type, resource);
+    if (store(type).replace(id, stored) == null) {
+      return notFound(type, id);
+    }
+    return new Reply(200, stored.json);
+  }
+
+  private Reply patch(String type, String id, GenericJson fields)
+      throws IOException {
+    ConcurrentNavigableMap<String, Stored> store = store(type);
+    while (true) {
+      Stored current = store.get(id);
+      if (current == null) {
+        return notFound(type, id);
+      }
+      GenericJson resource = parse(current.json);
+      resource.putAll(fields);
+      resource.put("id", id);
+      Stored patched = stored(type, resource);
+      if (store.replace(id, current, patched)) {
+        return new Reply(200, patched.json);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private Reply addMessage(String type, String id, GenericJson request)
+      throws IOException {
+    ConcurrentNavigableMap<String, Stored> store = store(type);
+    while (true) {
+      Stored current = store.get(id);
+      if (current == null) {
+        return notFound(type, id);
+      }
+      GenericJson resource = parse(current.json);
+      List<Object> messages = (List<Object>) resource.get("messages");
+      messages = messages == null ? new ArrayList<Object>()
+          : new ArrayList<Object>(messages);
+      messages.add(request.get("message"));
+      resource.put("messages", messages);
+      Stored updated = stored(type, resource);
+      if (store.replace(id, current, updated)) {
+        return new Reply(200, "{\"kind\":\"walletobjects#" + type
+            + "AddMessageResponse\",\"resource\":" + updated.json + "}");
+      }
+    }
+  }
+
+  // Splits a multipart batch into its calls and answers each in order
+  private LowLevelHttpResponse batch(String body, String contentType)
+      throws IOException {
+    String boundary = "--" + new HttpMediaType(contentType).getParameter("boundary");
+    StringBuilder response = new StringBuilder();
+    int part = 0;
+    BufferedReader reader = new BufferedReader(new StringReader(body));
+    String line = reader.readLine();
+    while (line != null && !line.equals(boundary + "--")) {
+      // Outer headers of the part, then the request line and inner headers
+      skipHeaders(reader);
+      String[] request = reader.readLine().split(" ");
+      skipHeaders(reader);
+      StringBuilder content = new StringBuilder();
+      while ((line = reader.readLine()) != null && !line.startsWith(boundary)) {
+        content.append(line);
+      }
+      Reply reply = handle(request[0], request[1], content.toString());
+      response.append("--").append(BOUNDARY).append(CRLF)
+          .append("Content-Type: application/http").append(CRLF)
+          .append("Content-ID: <response-").append(++part).append(">")
+          .append(CRLF).append(CRLF)
+          .append("HTTP/1.1 ").append(reply.status).append(" ")
+          .append(reply.status == 200 ? "OK" : "Error").append(CRLF)
+          .append("Content-Type: application/json; charset=UTF-8").append(CRLF)
+          .append(CRLF).append(reply.json).append(CRLF);
+    }
+    response.append("--").append(BOUNDARY).append("--").append(CRLF);
+    return new MockLowLevelHttpResponse()
+        .setContentType("multipart/mixed; boundary=" + BOUNDARY)
+        .setContent(response.toString());
+  }
+
+  // Reads up to and including the blank line after a block of headers
+  private static void skipHeaders(BufferedReader reader) throws IOException {
+    String line = reader.readLine();
+    while (line != null && !line.isEmpty()) {
+      line = reader.readLine();
+    }
+  }
+
+  private ConcurrentNavigableMap<String, Stored> store(String type) {
+    ConcurrentNavigableMap<String, Stored> store = resources.get(type);
+    if (store == null) {
+      ConcurrentNavigableMap<String, Stored> created =
+          new ConcurrentSkipListMap<String, Stored>();
+      store = resources.putIfAbsent(type, created);
+      if (store == null) {
+        store = created;
+      }
+    }
+    return store;
+  }
+
+  private static Stored stored(String type, GenericJson resource)
+      throws IOException {
+    resource.put("kind", "walletobjects#" + type);
+    return new Stored((String) resource.get("id"),
+        (String) resource.get("classId"), jsonFactory.toString(resource));
+  }
+
+  private static GenericJson parse(String json) throws IOException {
+    if (json == null || json.trim().isEmpty()) {
+      return new GenericJson();
+    }
+    return jsonFactory.fromString(json, GenericJson.class);
+  }
+
+  // Request body as UTF-8, unzipped if the client sent it gzipped
+  private static String content(LowLevelHttpRequest request)
+      throws IOException {
+    if (request.getStreamingContent() == null) {
+      return "";
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    request.getStreamingContent().writeTo(out);
+    String encoding = request.getContentEncoding();
+    if (encoding != null && encoding.contains("gzip")) {
+      InputStream in =
+          new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+      out = new ByteArrayOutputStream();
+      IOUtils.copy(in, out);
+    }
+    return new String(out.toByteArray(), Charsets.UTF_8);
+  }
+
+  private void delay() {
+    long millis = latencyMillis
+        + (jitterMillis > 0 ? (long) (random.nextDouble() * jitterMillis) : 0);
+    if (millis > 0) {
+      try {
+        Thread.sleep(millis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static Reply notFound(String type, String id) {
+    return error(404, "resourceNotFound", "No " + type + " with id " + id);
+  }
+
+  private static Reply error(int status, String reason, String message) {
+    GenericJson detail = new GenericJson();
+    detail.put("domain", "global");
+    detail.put("reason", reason);
+    detail.put("message", message);
+    GenericJson error = new GenericJson();
+    error.put("errors", Collections.singletonList(detail));
+    error.put("code", status);
+    error.put("message", message);
+    GenericJson json = new GenericJson();
+    json.put("error", error);
+    try {
+      return new Reply(status, jsonFactory.toString(json));
+    } catch (IOException e) {
+      return new Reply(status, "{}");
+    }
+  }
+
+  private static MockLowLevelHttpResponse json(int status, String json) {
+    return new MockLowLevelHttpResponse().setStatusCode(status)
+        .setContentType("application/json; charset=UTF-8").setContent(json);
+  }
+
+  // A status code and JSON body
+  static class Reply {
+    final int status;
+    final String json;
+
+    Reply(int status, String json) {
+      this.status = status;
+      this.json = json;
+    }
+  }
+
+  // A resource as JSON, with the fields lists are filtered on
+  private static class Stored {
+    final String id;
+    final String classId;
+    final String json;
+
+    Stored(String id, String classId, String json) {
+      this.id = id;
+      this.classId = classId;
+      this.json = json;
+    }
+  }
+}
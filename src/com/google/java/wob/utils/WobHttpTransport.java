@@ -0,0 +1,279 @@
+package com.google.java.wob.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.services.walletobjects.Walletobjects;
+import com.google.common.io.ByteStreams;
+
+/**
+ * HTTP transport shared by every WobUtils, backed by a pool of keep-alive
+ * connections so TLS handshakes are reused across requests. The pool holds up
+ * to HTTP_MAX_CONNECTIONS connections, HTTP_MAX_PER_ROUTE of them to any one
+ * host. Connections are kept alive for HTTP_KEEP_ALIVE_SECONDS unless the
+ * server says otherwise. Expired connections and those idle for longer are
+ * closed by the first request sent once EVICT_INTERVAL_SECONDS have passed,
+ * as App Engine has no background threads outside a request.
+ *
+ * With HTTP_PREWARM_CONNECTIONS set, that many connections to the
+ * Walletobjects API are opened when the transport is first used, on the
+ * threads of that request.
+ *
+ */
+public class WobHttpTransport {
+  private static final Logger log =
+      Logger.getLogger(WobHttpTransport.class.getName());
+
+  private static final int MAX_CONNECTIONS =
+      Integer.getInteger("HTTP_MAX_CONNECTIONS", 100);
+  private static final int MAX_PER_ROUTE =
+      Integer.getInteger("HTTP_MAX_PER_ROUTE", 20);
+  private static final long KEEP_ALIVE_MILLIS = TimeUnit.SECONDS.toMillis(
+      Long.getLong("HTTP_KEEP_ALIVE_SECONDS", 30L));
+  private static final int PREWARM_CONNECTIONS =
+      Integer.getInteger("HTTP_PREWARM_CONNECTIONS", 0);
+  private static final boolean FAKE = useFake();
+  private static final long EVICT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+  private static final long CONNECT_TIMEOUT_MILLIS = 20000;
+
+  private static final PoolingClientConnectionManager connections =
+      newConnectionManager();
+  private static final DefaultHttpClient client = newClient();
+  private static final ApacheHttpTransport transport =
+      new ApacheHttpTransport(client);
+  private static final HttpRoute apiRoute = apiRoute();
+
+  // When connections were last evicted
+  private static final AtomicLong evictedAtMillis =
+      new AtomicLong(System.currentTimeMillis());
+
+  static {
+    if (PREWARM_CONNECTIONS > 0) {
+      prewarm(Math.min(PREWARM_CONNECTIONS, MAX_PER_ROUTE));
+    }
+  }
+
+  /**
+   * @return the shared transport, or the in-memory WobFakeTransport when
+   *         WALLETOBJECTS_FAKE is true on the development server
+   */
+  public static HttpTransport get() {
+    return FAKE ? WobFakeTransport.get() : transport;
+  }
+
+  /**
+   * @return true if Walletobjects calls are answered by WobFakeTransport
+   */
+  public static boolean isFake() {
+    return FAKE;
+  }
+
+  // WALLETOBJECTS_FAKE is only honoured on the development server, so a
+  // deployed app never serves fake data
+  private static boolean useFake() {
+    if (!Boolean.getBoolean("WALLETOBJECTS_FAKE")) {
+      return false;
+    }
+    // The property behind SystemProperty.environment
+    String environment =
+        System.getProperty("com.google.appengine.runtime.environment");
+    if (!"Development".equals(environment)) {
+      log.severe("WALLETOBJECTS_FAKE is ignored outside the development "
+          + "server, environment is " + environment);
+      return false;
+    }
+    log.warning("WALLETOBJECTS_FAKE is set, Walletobjects calls are answered "
+        + "by an in-memory fake instead of the API");
+    return true;
+  }
+
+  /**
+   * @return connections in use, requests waiting for one and idle connections
+   *         available for reuse, across all hosts
+   */
+  public static PoolStats getStats() {
+    return connections.getTotalStats();
+  }
+
+  /**
+   * @return pool statistics for the Walletobjects API host
+   */
+  public static PoolStats getApiStats() {
+    return connections.getStats(apiRoute);
+  }
+
+  private static PoolingClientConnectionManager newConnectionManager() {
+    SchemeRegistry registry = new SchemeRegistry();
+    registry.register(
+        new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
+    registry.register(
+        new Scheme("https", 443, SSLSocketFactory.getSocketFactory()));
+    PoolingClientConnectionManager manager =
+        new PoolingClientConnectionManager(registry);
+    manager.setMaxTotal(MAX_CONNECTIONS);
+    manager.setDefaultMaxPerRoute(MAX_PER_ROUTE);
+    return manager;
+  }
+
+  // Same settings as ApacheHttpTransport.newDefaultHttpClient() apart from the
+  // pool and keep-alive
+  private static DefaultHttpClient newClient() {
+    HttpParams params = new BasicHttpParams();
+    HttpConnectionParams.setStaleCheckingEnabled(params, false);
+    HttpConnectionParams.setSocketBufferSize(params, 8192);
+
+    DefaultHttpClient client = new DefaultHttpClient(connections, params);
+    client.setHttpRequestRetryHandler(
+        new DefaultHttpRequestRetryHandler(0, false));
+    client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+      @Override
+      public long getKeepAliveDuration(HttpResponse response,
+          HttpContext context) {
+        long duration = super.getKeepAliveDuration(response, context);
+        return duration < 0 ? KEEP_ALIVE_MILLIS
+            : Math.min(duration, KEEP_ALIVE_MILLIS);
+      }
+    });
+    client.setRoutePlanner(new ProxySelectorRoutePlanner(
+        connections.getSchemeRegistry(), ProxySelector.getDefault()));
+    client.addRequestInterceptor(new HttpRequestInterceptor() {
+      @Override
+      public void process(HttpRequest request, HttpContext context) {
+        evictIfDue();
+      }
+    });
+    client.addResponseInterceptor(new HttpResponseInterceptor() {
+      @Override
+      public void process(HttpResponse response, HttpContext context)
+          throws IOException {
+        if (response.getStatusLine().getStatusCode() == 403) {
+          bufferEntity(response);
+        }
+      }
+    });
+    return client;
+  }
+
+  // Closes expired and idle connections, at most once per interval across
+  // every request thread
+  private static void evictIfDue() {
+    long now = System.currentTimeMillis();
+    long last = evictedAtMillis.get();
+    if (now - last >= EVICT_INTERVAL_MILLIS
+        && evictedAtMillis.compareAndSet(last, now)) {
+      connections.closeExpiredConnections();
+      connections.closeIdleConnections(KEEP_ALIVE_MILLIS,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  // Replaces the entity with its uncompressed bytes, so WobRateLimiter can
+  // read the error reason and reset the stream for the error to be reported
+  private static void bufferEntity(HttpResponse response) throws IOException {
+    HttpEntity entity = response.getEntity();
+    if (entity == null) {
+      return;
+    }
+    InputStream content = entity.getContent();
+    if (content == null) {
+      return;
+    }
+    Header encoding = entity.getContentEncoding();
+    if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
+      content = new GZIPInputStream(content);
+    }
+    byte[] body;
+    try {
+      body = ByteStreams.toByteArray(content);
+    } finally {
+      content.close();
+    }
+    ByteArrayEntity buffered = new ByteArrayEntity(body);
+    buffered.setContentType(entity.getContentType());
+    response.setEntity(buffered);
+    response.removeHeaders("Content-Encoding");
+    response.removeHeaders("Content-Length");
+  }
+
+  // The route the client takes to the API, so prewarmed connections are
+  // pooled under the same key as the requests that reuse them
+  private static HttpRoute apiRoute() {
+    URI root = URI.create(Walletobjects.DEFAULT_ROOT_URL);
+    try {
+      return client.getRoutePlanner().determineRoute(
+          URIUtils.extractHost(root), new HttpGet(root),
+          new BasicHttpContext());
+    } catch (HttpException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Opens connections to the API host on the upstream pool and returns them
+  // to the connection pool, so the first requests skip the TLS handshake
+  private static void prewarm(int count) {
+    Callable<Void> open = new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        ClientConnectionRequest request =
+            connections.requestConnection(apiRoute, null);
+        ManagedClientConnection connection = request.getConnection(
+            CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+          HttpParams params = new BasicHttpParams();
+          HttpConnectionParams.setConnectionTimeout(params,
+              (int) CONNECT_TIMEOUT_MILLIS);
+          connection.open(apiRoute, new BasicHttpContext(), params);
+          connection.markReusable();
+        } catch (Exception e) {
+          log.warning("Unable to prewarm connection: " + e.getMessage());
+          connection.unmarkReusable();
+        } finally {
+          connections.releaseConnection(connection, KEEP_ALIVE_MILLIS,
+              TimeUnit.MILLISECONDS);
+        }
+        return null;
+      }
+    };
+    for (int i = 0; i < count; i++) {
+      WobExecutors.upstream().submit(open);
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package com.google.java.wob.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.Base64;
+import com.google.api.client.util.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Bounded cache of signed Save to Wallet JWTs. Entries are keyed by the
+ * service account and issuer, the fingerprint of the signing key, a SHA-256
+ * hash of the payload JSON and the origins, and are reused for
+ * JWT_CACHE_TTL_SECONDS after the JWT was signed, so posting the same object
+ * again costs no RSA operations. A rotated key changes the fingerprint, so
+ * JWTs signed with the old key are not served after a reload. Concurrent
+ * requests for the same key are signed once.
+ *
+ */
+public class WobJwtCache {
+  private static final JsonFactory jsonFactory = new GsonFactory();
+
+  private static final Cache<String, String> jwts = CacheBuilder.newBuilder()
+      .maximumSize(Long.getLong("JWT_CACHE_SIZE", 1000L))
+      .expireAfterWrite(Long.getLong("JWT_CACHE_TTL_SECONDS", 300L),
+          TimeUnit.SECONDS)
+      .recordStats()
+      .build();
+
+  /**
+   * Returns a Save to Wallet JWT for the payload and each list of origins.
+   * JWTs not in the cache are signed concurrently, the first on the calling
+   * thread and the rest on the signing pool.
+   *
+   * @param util
+   * @param payload
+   * @param originLists
+   * @return JWTs in the same order as the origin lists
+   * @throws SignatureException
+   */
+  public static List<String> getSaveJwts(final WobUtils util,
+      final WobPayload payload, List<List<String>> originLists)
+      throws SignatureException {
+    String prefix = util.getServiceAccountId() + "|" + util.getIssuerId() + "|"
+        + fingerprint(util) + "|" + hash(payload) + "|";
+
+    List<Callable<String>> loaders = new ArrayList<Callable<String>>();
+    List<String> keys = new ArrayList<String>();
+    for (final List<String> origins : originLists) {
+      keys.add(prefix + Joiner.on(',').join(origins));
+      loaders.add(new Callable<String>() {
+        @Override
+        public String call() throws SignatureException {
+          return util.generateSaveJwt(payload, origins);
+        }
+      });
+    }
+
+    List<Future<String>> pending = new ArrayList<Future<String>>();
+    boolean signingInline = false;
+    for (int i = 0; i < keys.size(); i++) {
+      boolean cached = jwts.asMap().containsKey(keys.get(i));
+      if (cached || !signingInline) {
+        signingInline |= !cached;
+        pending.add(null);
+        continue;
+      }
+      final String key = keys.get(i);
+      final Callable<String> loader = loaders.get(i);
+      pending.add(WobExecutors.signing().submit(new Callable<String>() {
+        @Override
+        public String call() throws SignatureException {
+          return load(key, loader);
+        }
+      }));
+    }
+
+    List<String> results = new ArrayList<String>();
+    for (int i = 0; i < keys.size(); i++) {
+      Future<String> future = pending.get(i);
+      if (future == null) {
+        results.add(load(keys.get(i), loaders.get(i)));
+        continue;
+      }
+      try {
+        results.add(future.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SignatureException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof SignatureException) {
+          throw (SignatureException) e.getCause();
+        }
+        throw new SignatureException(e.getCause());
+      }
+    }
+    return results;
+  }
+
+  /**
+   * @return hit and miss counts of the cache
+   */
+  public static CacheStats getStats() {
+    return jwts.stats();
+  }
+
+  private static String load(String key, Callable<String> loader)
+      throws SignatureException {
+    try {
+      return jwts.get(key, loader);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SignatureException) {
+        throw (SignatureException) e.getCause();
+      }
+      throw new SignatureException(e.getCause());
+    } catch (UncheckedExecutionException e) {
+      throw new SignatureException(e.getCause());
+    }
+  }
+
+  private static String fingerprint(WobUtils util) throws SignatureException {
+    try {
+      return util.getKeyFingerprint();
+    } catch (IOException e) {
+      throw new SignatureException(e);
+    } catch (GeneralSecurityException e) {
+      throw new SignatureException(e);
+    }
+  }
+
+  // Hash of the payload JSON; the models always serialize their fields in the
+  // same order, so equal payloads hash the same
+  private static String hash(WobPayload payload) throws SignatureException {
+    try {
+      ByteArrayOutputStream json = new ByteArrayOutputStream(1024);
+      JsonGenerator generator =
+          jsonFactory.createJsonGenerator(json, Charsets.UTF_8);
+      payload.writeTo(generator);
+      generator.flush();
+      return Base64.encodeBase64URLSafeString(
+          MessageDigest.getInstance("SHA-256").digest(json.toByteArray()));
+    } catch (IOException e) {
+      throw new SignatureException(e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new SignatureException(e);
+    }
+  }
+}
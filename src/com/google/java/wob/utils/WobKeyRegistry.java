@@ -0,0 +1,209 @@
+package com.google.java.wob.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.api.client.util.Base64;
+import com.google.api.client.util.SecurityUtils;
+
+/**
+ * Process wide registry of service account private keys. Each PKCS#12 file is
+ * read and parsed once, and the parsed key is shared by every WobUtils. The
+ * file's modification time is checked at most every KEY_CHECK_INTERVAL_SECONDS
+ * and the key is swapped in one step when the file changes, so a key rotation
+ * costs one reload.
+ *
+ */
+public class WobKeyRegistry {
+  private static final Logger log =
+      Logger.getLogger(WobKeyRegistry.class.getName());
+
+  private static final String KEYSTORE_PASSWORD = "notasecret";
+  private static final String KEY_ALIAS = "privatekey";
+  private static final String ALGORITHM = "SHA256withRSA";
+  private static final long CHECK_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(
+      Long.getLong("KEY_CHECK_INTERVAL_SECONDS", 60L));
+
+  private static final ConcurrentMap<String, WobKeyRegistry> registries =
+      new ConcurrentHashMap<String, WobKeyRegistry>();
+
+  private final File file;
+  private volatile KeyMaterial material;
+  private volatile long lastChecked;
+
+  private WobKeyRegistry(File file) {
+    this.file = file;
+  }
+
+  /**
+   * @param rsaKeyPath path of the PKCS#12 key file
+   * @return the registry entry for the key file
+   */
+  public static WobKeyRegistry forPath(String rsaKeyPath) {
+    WobKeyRegistry registry = registries.get(rsaKeyPath);
+    if (registry == null) {
+      WobKeyRegistry created = new WobKeyRegistry(new File(rsaKeyPath));
+      registry = registries.putIfAbsent(rsaKeyPath, created);
+      if (registry == null) {
+        registry = created;
+      }
+    }
+    return registry;
+  }
+
+  /**
+   * Loads the key file ahead of the first request.
+   *
+   * @param rsaKeyPath path of the PKCS#12 key file
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  public static void preload(String rsaKeyPath) throws IOException,
+      GeneralSecurityException {
+    forPath(rsaKeyPath).getPrivateKey();
+  }
+
+  /**
+   * @return the parsed private key
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  public RSAPrivateKey getPrivateKey() throws IOException,
+      GeneralSecurityException {
+    return current().key;
+  }
+
+  /**
+   * @return a short hash of the current key, which changes when the key is
+   *         rotated
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  public String getFingerprint() throws IOException,
+      GeneralSecurityException {
+    return current().fingerprint;
+  }
+
+  /**
+   * Signs the content with SHA256withRSA. Each thread keeps its own
+   * java.security.Signature, initialized once with the current key, since a
+   * Signature is not thread safe and looking one up from the providers is
+   * slower than signing.
+   *
+   * @param content bytes to sign
+   * @return the signature
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  public byte[] sign(byte[] content) throws IOException,
+      GeneralSecurityException {
+    return current().sign(content);
+  }
+
+  private KeyMaterial current() throws IOException, GeneralSecurityException {
+    KeyMaterial current = material;
+    if (current != null
+        && System.currentTimeMillis() - lastChecked < CHECK_INTERVAL_MILLIS) {
+      return current;
+    }
+
+    synchronized (this) {
+      current = material;
+      long now = System.currentTimeMillis();
+      if (current != null && now - lastChecked < CHECK_INTERVAL_MILLIS) {
+        return current;
+      }
+      lastChecked = now;
+
+      if (current == null || file.lastModified() != current.lastModified
+          || file.length() != current.length) {
+        try {
+          material = load();
+          if (current != null) {
+            log.info("Reloaded private key " + file.getPath());
+          }
+        } catch (IOException e) {
+          if (current == null) {
+            throw e;
+          }
+          log.warning("Keeping previous key, unable to reload "
+              + file.getPath() + ": " + e.getMessage());
+        } catch (GeneralSecurityException e) {
+          if (current == null) {
+            throw e;
+          }
+          log.warning("Keeping previous key, unable to reload "
+              + file.getPath() + ": " + e.getMessage());
+        }
+      }
+      return material;
+    }
+  }
+
+  private KeyMaterial load() throws IOException, GeneralSecurityException {
+    if (!file.isFile()) {
+      throw new FileNotFoundException(file.getPath());
+    }
+    long lastModified = file.lastModified();
+    long length = file.length();
+    InputStream keyStream = new FileInputStream(file);
+    try {
+      RSAPrivateKey key = (RSAPrivateKey) SecurityUtils
+          .loadPrivateKeyFromKeyStore(SecurityUtils.getPkcs12KeyStore(),
+              keyStream, KEYSTORE_PASSWORD, KEY_ALIAS, KEYSTORE_PASSWORD);
+      return new KeyMaterial(key, lastModified, length);
+    } finally {
+      keyStream.close();
+    }
+  }
+
+  private static class KeyMaterial {
+    final RSAPrivateKey key;
+    final String fingerprint;
+    final long lastModified;
+    final long length;
+    final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>();
+
+    KeyMaterial(RSAPrivateKey key, long lastModified, long length)
+        throws GeneralSecurityException {
+      this.key = key;
+      this.lastModified = lastModified;
+      this.length = length;
+      // The first 8 bytes of the SHA-256 of the modulus
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+          key.getModulus().toByteArray());
+      fingerprint = Base64.encodeBase64URLSafeString(
+          Arrays.copyOf(digest, 8));
+    }
+
+    // sign() leaves the Signature ready for the next use with the same key;
+    // after a failure its state is unknown, so it is dropped
+    byte[] sign(byte[] content) throws GeneralSecurityException {
+      Signature signature = signatures.get();
+      if (signature == null) {
+        signature = Signature.getInstance(ALGORITHM);
+        signature.initSign(key);
+        signatures.set(signature);
+      }
+      try {
+        signature.update(content);
+        return signature.sign();
+      } catch (GeneralSecurityException e) {
+        signatures.remove();
+        throw e;
+      }
+    }
+  }
+}
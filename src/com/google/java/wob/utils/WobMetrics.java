@@ -0,0 +1,314 @@
+package com.google.java.wob.utils;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+
+/**
+ * Latency histograms and error counts for the servlets, for each
+ * Walletobjects operation, e.g. "loyaltyObject.get", for each webservice
+ * method and for JWT signing.
+ * Recording only updates atomic counters, so it never blocks.
+ *
+ * Histograms count every call since startup, with values kept to within about
+ * 6%.
+ *
+ */
+public class WobMetrics {
+  private static final ConcurrentMap<String, Histogram> servlets =
+      new ConcurrentHashMap<String, Histogram>();
+  private static final ConcurrentMap<String, Histogram> upstream =
+      new ConcurrentHashMap<String, Histogram>();
+  private static final ConcurrentMap<String, Histogram> webservice =
+      new ConcurrentHashMap<String, Histogram>();
+  private static final Histogram signing = new Histogram();
+
+  // Set when the current request writes an error response
+  private static final ThreadLocal<Boolean> error = new ThreadLocal<Boolean>();
+
+  /**
+   * Lock-free histogram of latencies in microseconds, with 16 buckets for
+   * each power of two.
+   */
+  public static class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    /**
+     * @param nanos
+     * @param failed true if the call failed
+     */
+    public void record(long nanos, boolean failed) {
+      long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+      counts.incrementAndGet(index(micros));
+      totalMicros.addAndGet(micros);
+      count.incrementAndGet();
+      if (failed) {
+        errors.incrementAndGet();
+      }
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getErrors() {
+      return errors.get();
+    }
+
+    public double getTotalSeconds() {
+      return totalMicros.get() / 1e6;
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return the latency in seconds that the quantile of calls were within
+     */
+    public double getQuantileSeconds(double quantile) {
+      long[] snapshot = new long[BUCKETS];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        snapshot[i] = counts.get(i);
+        total += snapshot[i];
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(quantile * total));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += snapshot[i];
+        if (seen >= rank) {
+          return highest(i) / 1e6;
+        }
+      }
+      return highest(BUCKETS - 1) / 1e6;
+    }
+
+    /**
+     * @param seconds e.g. an SLO latency
+     * @return the number of calls that took longer, to within the precision
+     *         of the histogram
+     */
+    public long getCountAbove(double seconds) {
+      long micros = (long) (seconds * 1e6);
+      long above = 0;
+      for (int i = index(micros) + 1; i < BUCKETS; i++) {
+        above += counts.get(i);
+      }
+      return above;
+    }
+
+    // Values below SUB_BUCKETS get a bucket each, larger ones keep their top
+    // SUB_BITS + 1 bits
+    static int index(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+      return ((shift + 1) << SUB_BITS)
+          + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    // Highest value that falls in the bucket
+    static long highest(int index) {
+      if (index < SUB_BUCKETS) {
+        return index;
+      }
+      int shift = (index >> SUB_BITS) - 1;
+      long lowest = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+      return lowest + (1L << shift) - 1;
+    }
+  }
+
+  /**
+   * @param path servlet path, e.g. "/classlist"
+   * @return the histogram of the servlet
+   */
+  public static Histogram servlet(String path) {
+    return histogram(servlets, path);
+  }
+
+  /**
+   * @param operation e.g. "loyaltyObject.get"
+   * @return the histogram of the Walletobjects operation
+   */
+  public static Histogram upstream(String operation) {
+    return histogram(upstream, operation);
+  }
+
+  /**
+   * @param method webservice method, e.g. "signup"
+   * @return the histogram of the webservice method
+   */
+  public static Histogram webservice(String method) {
+    return histogram(webservice, method);
+  }
+
+  /**
+   * @return the histogram of JWT signatures
+   */
+  public static Histogram signing() {
+    return signing;
+  }
+
+  /**
+   * @return servlet histograms by servlet path
+   */
+  public static Map<String, Histogram> servlets() {
+    return Collections.unmodifiableMap(servlets);
+  }
+
+  /**
+   * @return Walletobjects histograms by operation
+   */
+  public static Map<String, Histogram> upstream() {
+    return Collections.unmodifiableMap(upstream);
+  }
+
+  /**
+   * @return webservice histograms by method
+   */
+  public static Map<String, Histogram> webservice() {
+    return Collections.unmodifiableMap(webservice);
+  }
+
+  /**
+   * Marks the response of the current request as an error.
+   */
+  public static void markError() {
+    error.set(Boolean.TRUE);
+  }
+
+  /**
+   * @return true if the current request was marked as an error, clearing the
+   *         mark
+   */
+  public static boolean takeError() {
+    boolean marked = error.get() != null;
+    error.remove();
+    return marked;
+  }
+
+  /**
+   * Wraps a request initializer so that every Walletobjects call it
+   * initializes is timed, from when it is sent until its final response
+   * including retries. Calls that end in an unsuccessful status count as
+   * errors; an unsuccessful attempt that is retried is not counted. The calls
+   * inside a batch are timed together as "batch". Wrap the rate limiter, so
+   * the retries it asks for are seen.
+   *
+   * @param delegate
+   * @return request initializer for a Walletobjects client
+   */
+  public static HttpRequestInitializer wrap(
+      final HttpRequestInitializer delegate) {
+    return new HttpRequestInitializer() {
+      @Override
+      public void initialize(HttpRequest request) throws IOException {
+        if (delegate != null) {
+          delegate.initialize(request);
+        }
+        final HttpExecuteInterceptor interceptor = request.getInterceptor();
+        final HttpResponseInterceptor responseInterceptor =
+            request.getResponseInterceptor();
+        final HttpUnsuccessfulResponseHandler handler =
+            request.getUnsuccessfulResponseHandler();
+        final AtomicLong start = new AtomicLong();
+        // Set while an unsuccessful response waits to see if it is retried.
+        // The calls inside a batch never get one, so they are not recorded.
+        final AtomicBoolean unsuccessful = new AtomicBoolean();
+
+        request.setInterceptor(new HttpExecuteInterceptor() {
+          @Override
+          public void intercept(HttpRequest request) throws IOException {
+            if (interceptor != null) {
+              interceptor.intercept(request);
+            }
+            // Retries keep the time of the first attempt
+            start.compareAndSet(0, System.nanoTime());
+          }
+        });
+
+        request.setResponseInterceptor(new HttpResponseInterceptor() {
+          @Override
+          public void interceptResponse(HttpResponse response)
+              throws IOException {
+            if (start.get() != 0) {
+              if (response.isSuccessStatusCode()) {
+                upstream(operation(response.getRequest())).record(
+                    System.nanoTime() - start.get(), false);
+              } else {
+                unsuccessful.set(true);
+              }
+            }
+            if (responseInterceptor != null) {
+              responseInterceptor.interceptResponse(response);
+            }
+          }
+        });
+
+        request.setUnsuccessfulResponseHandler(
+            new HttpUnsuccessfulResponseHandler() {
+              @Override
+              public boolean handleResponse(HttpRequest request,
+                  HttpResponse response, boolean supportsRetry)
+                  throws IOException {
+                boolean retry = handler != null
+                    && handler.handleResponse(request, response, supportsRetry);
+                if (unsuccessful.getAndSet(false) && !(retry && supportsRetry)) {
+                  upstream(operation(request)).record(
+                      System.nanoTime() - start.get(), true);
+                }
+                return retry;
+              }
+            });
+      }
+    };
+  }
+
+  // Resource and operation, e.g. "loyaltyObject.get"
+  private static String operation(HttpRequest request) {
+    String operation = WobRateLimiter.operation(request);
+    if (operation == null) {
+      return "batch";
+    }
+    List<String> path = request.getUrl().getPathParts();
+    int version = path.indexOf("v1");
+    return version >= 0 && path.size() > version + 1
+        ? path.get(version + 1) + "." + operation : operation;
+  }
+
+  private static Histogram histogram(ConcurrentMap<String, Histogram> map,
+      String name) {
+    Histogram histogram = map.get(name);
+    if (histogram == null) {
+      Histogram created = new Histogram();
+      histogram = map.putIfAbsent(name, created);
+      if (histogram == null) {
+        histogram = created;
+      }
+    }
+    return histogram;
+  }
+}
@@ -1,12 +1,14 @@
 package com.google.java.wob.utils;
 
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.google.api.client.json.GenericJson;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.json.JsonGenerator;
 import com.google.api.services.walletobjects.model.BoardingPassClass;
 import com.google.api.services.walletobjects.model.BoardingPassObject;
 import com.google.api.services.walletobjects.model.GenericClass;
@@ -15,16 +17,36 @@ import com.google.api.services.walletobjects.model.LoyaltyClass;
 import com.google.api.services.walletobjects.model.LoyaltyObject;
 import com.google.api.services.walletobjects.model.OfferClass;
 import com.google.api.services.walletobjects.model.OfferObject;
-import com.google.gson.Gson;
 import com.google.java.wob.webservice.WebserviceResponse;
 
 /**
- * Bean to represent the Wob payload object
+ * Bean to represent the Wob payload object. Classes and objects are kept as
+ * the typed models they were added as and are only serialized once, by
+ * writeTo, when the JWT is built.
  *
  * @author pying
  *
  */
 public class WobPayload {
+  private enum Bucket {
+    LOYALTY_CLASS, OFFER_CLASS, GENERIC_CLASS, BOARDING_PASS_CLASS,
+    LOYALTY_OBJECT, OFFER_OBJECT, GENERIC_OBJECT, BOARDING_PASS_OBJECT
+  }
+
+  private static final Map<Class<?>, Bucket> BUCKETS =
+      new HashMap<Class<?>, Bucket>();
+
+  static {
+    BUCKETS.put(LoyaltyClass.class, Bucket.LOYALTY_CLASS);
+    BUCKETS.put(OfferClass.class, Bucket.OFFER_CLASS);
+    BUCKETS.put(GenericClass.class, Bucket.GENERIC_CLASS);
+    BUCKETS.put(BoardingPassClass.class, Bucket.BOARDING_PASS_CLASS);
+    BUCKETS.put(LoyaltyObject.class, Bucket.LOYALTY_OBJECT);
+    BUCKETS.put(OfferObject.class, Bucket.OFFER_OBJECT);
+    BUCKETS.put(GenericObject.class, Bucket.GENERIC_OBJECT);
+    BUCKETS.put(BoardingPassObject.class, Bucket.BOARDING_PASS_OBJECT);
+  }
+
   private List<GenericJson> loyaltyClasses = new ArrayList<GenericJson>();
   private List<GenericJson> offerClasses = new ArrayList<GenericJson>();
   private List<GenericJson> genericClasses = new ArrayList<GenericJson>();
@@ -37,38 +59,99 @@ public class WobPayload {
 
   private WebserviceResponse webserviceResponse;
 
-  private transient Gson gson = new Gson();
-  private transient JsonFactory jsonFactory = new GsonFactory();
-
   public WobPayload(){}
 
   public void addObject(GenericJson object){
-    object.setFactory(jsonFactory);
-
-    if (LoyaltyObject.class.isAssignableFrom(object.getClass())) {
-      addLoyaltyObject(gson.fromJson(object.toString(), GenericJson.class));
-    } else if (OfferObject.class.isAssignableFrom(object.getClass())) {
-      addOfferObject(gson.fromJson(object.toString(), GenericJson.class));
-    } else if (GenericObject.class.isAssignableFrom(object.getClass())) {
-      addGenericObject(gson.fromJson(object.toString(), GenericJson.class));
-    } else if (BoardingPassObject.class.isAssignableFrom(object.getClass())) {
-      addBoardingPassObject(gson.fromJson(object.toString(),
-          GenericJson.class));
-    } else if (BoardingPassClass.class.isAssignableFrom(object.getClass())) {
-      addBoardingPassClass(gson.fromJson(object.toString(),
-          GenericJson.class));
-    } else if (LoyaltyClass.class.isAssignableFrom(object.getClass())) {
-      addLoyaltyClass(gson.fromJson(object.toString(),
-          GenericJson.class));
-    } else if (OfferClass.class.isAssignableFrom(object.getClass())) {
-      addOfferClass(gson.fromJson(object.toString(),
-          GenericJson.class));
-    } else if (GenericClass.class.isAssignableFrom(object.getClass())) {
-      addGenericClass(gson.fromJson(object.toString(),
-          GenericJson.class));
-    } else
+    Bucket bucket = BUCKETS.get(object.getClass());
+    if (bucket == null) {
+      // The models are final in this client library, but subclasses in a
+      // later one go with their superclass rather than being rejected
+      for (Map.Entry<Class<?>, Bucket> entry : BUCKETS.entrySet()) {
+        if (entry.getKey().isAssignableFrom(object.getClass())) {
+          bucket = entry.getValue();
+          break;
+        }
+      }
+    }
+    if (bucket == null) {
       throw new IllegalArgumentException("Invalid Object type: "
           + object.getClass());
+    }
+
+    switch (bucket) {
+      case LOYALTY_CLASS:
+        addLoyaltyClass(object);
+        break;
+      case OFFER_CLASS:
+        addOfferClass(object);
+        break;
+      case GENERIC_CLASS:
+        addGenericClass(object);
+        break;
+      case BOARDING_PASS_CLASS:
+        addBoardingPassClass(object);
+        break;
+      case LOYALTY_OBJECT:
+        addLoyaltyObject(object);
+        break;
+      case OFFER_OBJECT:
+        addOfferObject(object);
+        break;
+      case GENERIC_OBJECT:
+        addGenericObject(object);
+        break;
+      case BOARDING_PASS_OBJECT:
+        addBoardingPassObject(object);
+        break;
+    }
+  }
+
+  /**
+   * Writes the payload as a JSON object, with the same field names as the
+   * bean's Gson serialization.
+   *
+   * @param generator
+   * @throws IOException
+   */
+  public void writeTo(JsonGenerator generator) throws IOException {
+    generator.writeStartObject();
+    writeList(generator, "loyaltyClasses", loyaltyClasses);
+    writeList(generator, "offerClasses", offerClasses);
+    writeList(generator, "genericClasses", genericClasses);
+    writeList(generator, "boardingPassClasses", boardingPassClasses);
+    writeList(generator, "loyaltyObjects", loyaltyObjects);
+    writeList(generator, "offerObjects", offerObjects);
+    writeList(generator, "genericObjects", genericObjects);
+    writeList(generator, "boardingPassObjects", boardingPassObjects);
+    if (webserviceResponse != null) {
+      generator.writeFieldName("webserviceResponse");
+      generator.writeStartObject();
+      writeString(generator, "message", webserviceResponse.getMessage());
+      writeString(generator, "result", webserviceResponse.getResult());
+      generator.writeEndObject();
+    }
+    generator.writeEndObject();
+  }
+
+  private static void writeList(JsonGenerator generator, String name,
+      List<GenericJson> resources) throws IOException {
+    if (resources == null) {
+      return;
+    }
+    generator.writeFieldName(name);
+    generator.writeStartArray();
+    for (GenericJson resource : resources) {
+      generator.serialize(resource);
+    }
+    generator.writeEndArray();
+  }
+
+  private static void writeString(JsonGenerator generator, String name,
+      String value) throws IOException {
+    if (value != null) {
+      generator.writeFieldName(name);
+      generator.writeString(value);
+    }
   }
 
   public void addLoyaltyObject(GenericJson object){
@@ -0,0 +1,404 @@
+package com.google.java.wob.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Token bucket rate limits for the Walletobjects calls of one issuer, with a
+ * separate bucket per operation (get, list, insert, update, patch and
+ * addMessage). Calls over the limit wait for a permit rather than fail.
+ *
+ * Rates adapt AIMD style: a 429 or a 403 quota error halves the rate of the
+ * operation, at most once a second, and the call is retried once a permit is
+ * free. A successful call adds RATE_LIMIT_INCREASE_QPS, at most once a second,
+ * up to RATE_LIMIT_MAX_QPS, so an idle operation keeps its rate. Each call
+ * inside a batch request takes its own permit, and succeeds with the batch.
+ *
+ * A thread may set a deadline for its permits, as a batch request does; a call
+ * that cannot get a permit before the deadline fails instead of waiting, and
+ * so does a call whose thread is interrupted while it waits.
+ *
+ */
+public class WobRateLimiter {
+  private static final Logger log =
+      Logger.getLogger(WobRateLimiter.class.getName());
+
+  private static final double INITIAL_QPS = Double.parseDouble(
+      System.getProperty("RATE_LIMIT_QPS", "10"));
+  private static final double MIN_QPS = Double.parseDouble(
+      System.getProperty("RATE_LIMIT_MIN_QPS", "1"));
+  private static final double MAX_QPS = Double.parseDouble(
+      System.getProperty("RATE_LIMIT_MAX_QPS", "50"));
+  private static final double INCREASE_QPS = Double.parseDouble(
+      System.getProperty("RATE_LIMIT_INCREASE_QPS", "1"));
+  private static final double DECREASE_FACTOR = 0.5;
+  private static final long ADJUST_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private static final JsonFactory jsonFactory = new GsonFactory();
+
+  private static final ConcurrentMap<String, WobRateLimiter> limiters =
+      new ConcurrentHashMap<String, WobRateLimiter>();
+
+  // Operations of the calls in the batch request being sent on the thread
+  private static final ThreadLocal<Set<String>> batchOperations =
+      new ThreadLocal<Set<String>>();
+
+  // System.nanoTime() by which calls made on the thread must have a permit
+  private static final ThreadLocal<Long> deadlines = new ThreadLocal<Long>();
+
+  private final String issuerId;
+  private final ConcurrentMap<String, Bucket> buckets =
+      new ConcurrentHashMap<String, Bucket>();
+
+  private WobRateLimiter(String issuerId) {
+    this.issuerId = issuerId;
+  }
+
+  /**
+   * @param issuerId
+   * @return the rate limiter shared by every client of the issuer
+   */
+  public static WobRateLimiter forIssuer(String issuerId) {
+    WobRateLimiter limiter = limiters.get(issuerId);
+    if (limiter == null) {
+      WobRateLimiter created = new WobRateLimiter(issuerId);
+      limiter = limiters.putIfAbsent(issuerId, created);
+      if (limiter == null) {
+        limiter = created;
+      }
+    }
+    return limiter;
+  }
+
+  /**
+   * Sets how long calls made on the current thread may wait for permits.
+   *
+   * @param deadlineNanos System.nanoTime() by which a call must have its
+   *        permit, or null to wait as long as needed
+   */
+  public static void setDeadline(Long deadlineNanos) {
+    if (deadlineNanos == null) {
+      deadlines.remove();
+    } else {
+      deadlines.set(deadlineNanos);
+    }
+  }
+
+  /**
+   * Wraps a request initializer, such as the WobTokenManager, so that every
+   * request it initializes waits for a permit before it is sent and backs off
+   * when rate limited.
+   *
+   * @param delegate
+   * @return request initializer for a Walletobjects client
+   */
+  public HttpRequestInitializer wrap(final HttpRequestInitializer delegate) {
+    return new HttpRequestInitializer() {
+      @Override
+      public void initialize(HttpRequest request) throws IOException {
+        if (delegate != null) {
+          delegate.initialize(request);
+        }
+        final HttpExecuteInterceptor interceptor = request.getInterceptor();
+        final HttpResponseInterceptor responseInterceptor =
+            request.getResponseInterceptor();
+        final HttpUnsuccessfulResponseHandler handler =
+            request.getUnsuccessfulResponseHandler();
+
+        request.setInterceptor(new HttpExecuteInterceptor() {
+          @Override
+          public void intercept(HttpRequest request) throws IOException {
+            String operation = operation(request);
+            if (operation != null) {
+              bucket(operation).acquire();
+              Set<String> operations = batchOperations.get();
+              if (operations != null) {
+                operations.add(operation);
+              }
+            } else {
+              // The calls of a batch are intercepted after the batch itself
+              batchOperations.set(new HashSet<String>());
+            }
+            if (interceptor != null) {
+              interceptor.intercept(request);
+            }
+          }
+        });
+
+        request.setResponseInterceptor(new HttpResponseInterceptor() {
+          @Override
+          public void interceptResponse(HttpResponse response)
+              throws IOException {
+            String operation = operation(response.getRequest());
+            if (operation != null) {
+              if (response.isSuccessStatusCode()) {
+                bucket(operation).increase();
+              }
+            } else {
+              Set<String> operations = batchOperations.get();
+              batchOperations.remove();
+              if (operations != null && response.isSuccessStatusCode()) {
+                for (String batched : operations) {
+                  bucket(batched).increase();
+                }
+              }
+            }
+            if (responseInterceptor != null) {
+              responseInterceptor.interceptResponse(response);
+            }
+          }
+        });
+
+        request.setUnsuccessfulResponseHandler(
+            new HttpUnsuccessfulResponseHandler() {
+              @Override
+              public boolean handleResponse(HttpRequest request,
+                  HttpResponse response, boolean supportsRetry)
+                  throws IOException {
+                String operation = operation(request);
+                if (operation != null && isRateLimited(response)) {
+                  bucket(operation).backOff();
+                  // The retry waits for a permit at the lower rate
+                  return supportsRetry;
+                }
+                return handler != null
+                    && handler.handleResponse(request, response, supportsRetry);
+              }
+            });
+      }
+    };
+  }
+
+  /**
+   * @param operation e.g. "get" or "insert"
+   * @return the current rate of the operation in calls per second
+   */
+  public double getRate(String operation) {
+    return bucket(operation).limiter.getRate();
+  }
+
+  /**
+   * @return the lowest current rate of the issuer's operations in calls per
+   *         second, or the initial rate if none has been used yet
+   */
+  public double getSlowestRate() {
+    double slowest = Double.MAX_VALUE;
+    for (Bucket bucket : buckets.values()) {
+      slowest = Math.min(slowest, bucket.limiter.getRate());
+    }
+    return slowest == Double.MAX_VALUE ? INITIAL_QPS : slowest;
+  }
+
+  /**
+   * @param operation e.g. "get" or "insert"
+   * @return the number of calls waiting for a permit
+   */
+  public int getQueueDepth(String operation) {
+    return bucket(operation).waiting.get();
+  }
+
+  /**
+   * @return current rate of every issuer and operation, keyed by
+   *         "issuerId:operation"
+   */
+  public static Map<String, Double> rates() {
+    Map<String, Double> rates = new TreeMap<String, Double>();
+    for (WobRateLimiter limiter : limiters.values()) {
+      for (Map.Entry<String, Bucket> entry : limiter.buckets.entrySet()) {
+        rates.put(limiter.issuerId + ":" + entry.getKey(),
+            entry.getValue().limiter.getRate());
+      }
+    }
+    return rates;
+  }
+
+  /**
+   * @return calls waiting for a permit for every issuer and operation, keyed
+   *         by "issuerId:operation"
+   */
+  public static Map<String, Integer> queueDepths() {
+    Map<String, Integer> depths = new TreeMap<String, Integer>();
+    for (WobRateLimiter limiter : limiters.values()) {
+      for (Map.Entry<String, Bucket> entry : limiter.buckets.entrySet()) {
+        depths.put(limiter.issuerId + ":" + entry.getKey(),
+            entry.getValue().waiting.get());
+      }
+    }
+    return depths;
+  }
+
+  private Bucket bucket(String operation) {
+    Bucket bucket = buckets.get(operation);
+    if (bucket == null) {
+      Bucket created = new Bucket(issuerId + ":" + operation);
+      bucket = buckets.putIfAbsent(operation, created);
+      if (bucket == null) {
+        bucket = created;
+      }
+    }
+    return bucket;
+  }
+
+  /**
+   * Names the Walletobjects operation of a request from its method and path,
+   * e.g. GET /walletobjects/v1/loyaltyObject/{id} is "get". Returns null for
+   * the outer request of a batch, whose calls are limited one by one.
+   */
+  static String operation(HttpRequest request) {
+    List<String> path = request.getUrl().getPathParts();
+    if (path == null || path.isEmpty()
+        || "batch".equals(path.get(path.size() - 1))) {
+      return null;
+    }
+    String method = request.getRequestMethod();
+    String override = request.getHeaders().getFirstHeaderStringValue(
+        "X-HTTP-Method-Override");
+    if (override != null) {
+      method = override;
+    }
+
+    if ("addMessage".equals(path.get(path.size() - 1))) {
+      return "addMessage";
+    } else if ("PATCH".equals(method)) {
+      return "patch";
+    } else if ("PUT".equals(method)) {
+      return "update";
+    } else if ("POST".equals(method)) {
+      return "insert";
+    }
+    // .../v1/{resource} is a list, .../v1/{resource}/{id} a get
+    int version = path.indexOf("v1");
+    return version >= 0 && path.size() > version + 2 ? "get" : "list";
+  }
+
+  /**
+   * @param error details of an API error
+   * @return true if the error has one of the quota reasons
+   */
+  public static boolean isQuotaError(GoogleJsonError error) {
+    List<GoogleJsonError.ErrorInfo> errors =
+        error == null ? null : error.getErrors();
+    if (errors == null) {
+      return false;
+    }
+    for (GoogleJsonError.ErrorInfo info : errors) {
+      String reason = info.getReason();
+      if ("rateLimitExceeded".equals(reason)
+          || "userRateLimitExceeded".equals(reason)
+          || "quotaExceeded".equals(reason)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // 429, or 403 with one of the quota reasons in the error body. The body is
+  // only read if it can be reset afterwards, so a 403 that is not retried is
+  // still reported with its details; WobHttpTransport buffers 403 bodies.
+  private static boolean isRateLimited(HttpResponse response)
+      throws IOException {
+    if (response.getStatusCode() == 429) {
+      return true;
+    }
+    if (response.getStatusCode() != 403) {
+      return false;
+    }
+    InputStream content = response.getContent();
+    if (content == null || !content.markSupported()) {
+      return false;
+    }
+    content.mark(Integer.MAX_VALUE);
+    try {
+      return isQuotaError(GoogleJsonError.parse(jsonFactory, response));
+    } catch (IOException e) {
+      return false;
+    } catch (IllegalArgumentException e) {
+      return false;
+    } finally {
+      content.reset();
+    }
+  }
+
+  private static class Bucket {
+    final String name;
+    final RateLimiter limiter = RateLimiter.create(INITIAL_QPS);
+    final AtomicInteger waiting = new AtomicInteger();
+    private long lastAdjusted = System.nanoTime();
+    private long lastDecreased;
+
+    Bucket(String name) {
+      this.name = name;
+    }
+
+    // RateLimiter waits ignore interrupts, so the interrupt is checked once
+    // the permit is taken
+    void acquire() throws IOException {
+      Long deadline = deadlines.get();
+      waiting.incrementAndGet();
+      try {
+        if (deadline == null) {
+          limiter.acquire();
+        } else if (!limiter.tryAcquire(
+            Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+          throw new IOException("No permit for " + name + " before the deadline");
+        }
+      } finally {
+        waiting.decrementAndGet();
+      }
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedIOException("Interrupted waiting for a permit for "
+            + name);
+      }
+    }
+
+    // Additive increase on success, once per interval however many calls
+    // succeed
+    synchronized void increase() {
+      long now = System.nanoTime();
+      if (now - lastAdjusted < ADJUST_INTERVAL_NANOS) {
+        return;
+      }
+      lastAdjusted = now;
+      double rate = limiter.getRate();
+      if (rate < MAX_QPS) {
+        limiter.setRate(Math.min(MAX_QPS, rate + INCREASE_QPS));
+      }
+    }
+
+    // Multiplicative decrease, once per interval however many calls fail
+    synchronized void backOff() {
+      long now = System.nanoTime();
+      if (lastDecreased != 0 && now - lastDecreased < ADJUST_INTERVAL_NANOS) {
+        return;
+      }
+      lastDecreased = now;
+      lastAdjusted = now;
+      double reduced = Math.max(MIN_QPS, limiter.getRate() * DECREASE_FACTOR);
+      limiter.setRate(reduced);
+      log.warning("Rate limited on " + name + ", reduced to " + reduced
+          + " calls per second");
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package com.google.java.wob.utils;
+
+import java.io.IOException;
+import java.security.PrivateKey;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.common.base.Objects;
+
+/**
+ * Holds the OAuth access token for one service account and shares it between
+ * every client using that account. The first request within
+ * TOKEN_REFRESH_MARGIN_SECONDS of expiry refreshes the token, while the others
+ * keep using the current one, so requests only all wait on the token endpoint
+ * the very first time a token is needed. App Engine has no background threads
+ * outside a request, so the refresh runs on the request's own thread.
+ * Concurrent refreshes are collapsed into one.
+ *
+ * Used as the request initializer of a Walletobjects client in place of the
+ * GoogleCredential itself.
+ *
+ */
+public class WobTokenManager implements HttpRequestInitializer,
+    HttpExecuteInterceptor, HttpUnsuccessfulResponseHandler {
+  private static final Logger log =
+      Logger.getLogger(WobTokenManager.class.getName());
+
+  private static final String BEARER = "Bearer ";
+  private static final long REFRESH_MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(
+      Long.getLong("TOKEN_REFRESH_MARGIN_SECONDS", 300L));
+  // Used when the token server does not say how long a token lasts
+  private static final long DEFAULT_LIFETIME_MILLIS = TimeUnit.MINUTES.toMillis(60);
+
+  private static final ConcurrentMap<String, WobTokenManager> managers =
+      new ConcurrentHashMap<String, WobTokenManager>();
+
+  private final String serviceAccountId;
+  private final GoogleCredential credential;
+  private final Object refreshLock = new Object();
+  // Set while a request refreshes a token that is still valid
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+
+  private volatile String accessToken;
+  private volatile long expiresAtMillis;
+  private volatile long refreshedAtMillis;
+  private volatile long lastRefreshLatencyMillis;
+
+  private WobTokenManager(String serviceAccountId, GoogleCredential credential) {
+    this.serviceAccountId = serviceAccountId;
+    this.credential = credential;
+  }
+
+  /**
+   * @param serviceAccountId
+   * @return the token manager for the service account, or null if none has
+   *         been registered yet
+   */
+  public static WobTokenManager get(String serviceAccountId) {
+    return managers.get(serviceAccountId);
+  }
+
+  /**
+   * Registers a token manager for the service account. If one already exists
+   * for the same private key it is returned and the credential is ignored; a
+   * manager for an older key is replaced.
+   *
+   * @param serviceAccountId
+   * @param credential
+   * @return the token manager for the service account
+   */
+  public static WobTokenManager register(String serviceAccountId,
+      GoogleCredential credential) {
+    WobTokenManager manager = new WobTokenManager(serviceAccountId, credential);
+    while (true) {
+      WobTokenManager existing = managers.putIfAbsent(serviceAccountId, manager);
+      if (existing == null) {
+        return manager;
+      }
+      if (existing.getPrivateKey() == credential.getServiceAccountPrivateKey()) {
+        return existing;
+      }
+      if (managers.replace(serviceAccountId, existing, manager)) {
+        return manager;
+      }
+    }
+  }
+
+  /**
+   * Returns a valid access token. Blocks when there is no usable token, or
+   * when this request is the one refreshing a token close to expiry.
+   *
+   * @return OAuth access token
+   * @throws IOException
+   */
+  public String getAccessToken() throws IOException {
+    String token = accessToken;
+    long now = System.currentTimeMillis();
+    if (token == null || now >= expiresAtMillis) {
+      refresh(token);
+      return accessToken;
+    }
+    if (now >= expiresAtMillis - REFRESH_MARGIN_MILLIS
+        && refreshing.compareAndSet(false, true)) {
+      try {
+        refresh(token);
+        return accessToken;
+      } catch (IOException e) {
+        // The current token still works until it expires
+        log.log(Level.WARNING, "Early token refresh failed for "
+            + serviceAccountId, e);
+      } finally {
+        refreshing.set(false);
+      }
+    }
+    return token;
+  }
+
+  @Override
+  public void initialize(HttpRequest request) throws IOException {
+    request.setInterceptor(this);
+    request.setUnsuccessfulResponseHandler(this);
+  }
+
+  @Override
+  public void intercept(HttpRequest request) throws IOException {
+    request.getHeaders().setAuthorization(BEARER + getAccessToken());
+  }
+
+  @Override
+  public boolean handleResponse(HttpRequest request, HttpResponse response,
+      boolean supportsRetry) {
+    if (response.getStatusCode() != 401) {
+      return false;
+    }
+    String sent = request.getHeaders().getAuthorization();
+    try {
+      refresh(sent == null ? null : sent.substring(BEARER.length()));
+      return true;
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Unable to refresh token for " + serviceAccountId, e);
+      return false;
+    }
+  }
+
+  /**
+   * @return milliseconds since the current token was obtained, or -1 if there
+   *         is no token
+   */
+  public long getTokenAgeMillis() {
+    return accessToken == null ? -1
+        : System.currentTimeMillis() - refreshedAtMillis;
+  }
+
+  /**
+   * @return how long the last token refresh took in milliseconds
+   */
+  public long getLastRefreshLatencyMillis() {
+    return lastRefreshLatencyMillis;
+  }
+
+  /**
+   * @return the private key the tokens are requested with
+   */
+  public PrivateKey getPrivateKey() {
+    return credential.getServiceAccountPrivateKey();
+  }
+
+  /**
+   * @return the service account this manager holds tokens for
+   */
+  public String getServiceAccountId() {
+    return serviceAccountId;
+  }
+
+  // Refreshes unless another thread already replaced the token seen by the caller
+  private void refresh(String seen) throws IOException {
+    synchronized (refreshLock) {
+      if (accessToken != null && !Objects.equal(accessToken, seen)
+          && System.currentTimeMillis() < expiresAtMillis) {
+        return;
+      }
+
+      long start = System.currentTimeMillis();
+      if (!credential.refreshToken() || credential.getAccessToken() == null) {
+        throw new IOException("Unable to refresh access token for "
+            + serviceAccountId);
+      }
+      long now = System.currentTimeMillis();
+      Long expiresIn = credential.getExpiresInSeconds();
+      long lifetime = expiresIn == null ? DEFAULT_LIFETIME_MILLIS
+          : TimeUnit.SECONDS.toMillis(expiresIn);
+
+      lastRefreshLatencyMillis = now - start;
+      refreshedAtMillis = now;
+      expiresAtMillis = now + lifetime;
+      accessToken = credential.getAccessToken();
+    }
+  }
+}
@@ -1,38 +1,35 @@
 package com.google.java.wob.utils;
 
-import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.security.GeneralSecurityException;
 import java.security.KeyStoreException;
 import java.security.SignatureException;
 import java.security.interfaces.RSAPrivateKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
-import net.oauth.jsontoken.JsonToken;
-import net.oauth.jsontoken.crypto.RsaSHA256Signer;
-
-import org.joda.time.Instant;
-
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.GenericJson;
 import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonGenerator;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.client.util.Base64;
-import com.google.api.client.util.SecurityUtils;
+import com.google.api.client.util.Charsets;
 import com.google.api.services.walletobjects.Walletobjects;
 import com.google.api.services.walletobjects.model.DateTime;
-import com.google.common.io.ByteStreams;
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
 import com.google.java.wob.ClientMethods;
 import com.google.java.wob.SaveToWalletServlet;
 import com.google.java.wob.webservice.WebserviceResponse;
@@ -50,6 +47,13 @@ public class WobUtils {
   private final String WOB_PROD =
       "https://www.googleapis.com/auth/wallet_object.issuer";
   private final String GOOGLE = "google";
+  private static final String JWT_HEADER = Base64.encodeBase64URLSafeString(
+      "{\"alg\":\"RS256\"}".getBytes(Charsets.UTF_8));
+
+  private static final AtomicLong signatureCount = new AtomicLong();
+  private static final AtomicLong signatureNanos = new AtomicLong();
+  private static final AtomicLong maxSignatureNanos = new AtomicLong();
+  private static final AtomicLong firstSignatureMillis = new AtomicLong();
 
   private final String serviceAccountId;
   private final String rsaKeyPath;
@@ -60,10 +64,8 @@ public class WobUtils {
   private HttpTransport httpTransport;
   private JsonFactory jsonFactory;
 
-  RsaSHA256Signer signer = null;
-  Gson gson = new Gson();
-
-  private RSAPrivateKey rsaKey;
+  private final WobKeyRegistry keys;
+  private volatile RSAPrivateKey rsaKey;
 
   /**
    *
@@ -79,19 +81,17 @@ public class WobUtils {
     rsaKeyPath = credentials.getServiceAccountPrivateKey();
     applicationName = credentials.getApplicationName();
     issuerId = credentials.getIssuerId();
-    httpTransport = new NetHttpTransport();
+    httpTransport = WobHttpTransport.get();
     jsonFactory = new GsonFactory();
-    File file = new File(rsaKeyPath);
-    byte[] bytes = ByteStreams.toByteArray(new FileInputStream(file));
-    InputStream keyStream = new ByteArrayInputStream(bytes);
-    rsaKey = (RSAPrivateKey) SecurityUtils
-        .loadPrivateKeyFromKeyStore(SecurityUtils.getPkcs12KeyStore(),
-            keyStream, "notasecret", "privatekey", "notasecret");
-    signer = new RsaSHA256Signer(serviceAccountId, null, rsaKey);
+    keys = WobKeyRegistry.forPath(rsaKeyPath);
+    rsaKey = keys.getPrivateKey();
   }
 
   /**
-   * Creates a Walletobjects client with sandbox and production scopes
+   * Creates a Walletobjects client with sandbox and production scopes. Its
+   * calls are throttled by the issuer's WobRateLimiter. Each request is
+   * authorized by the current token manager, so a client built before the key
+   * is reloaded uses the new key from then on.
    *
    * @return Walletobjects client
    * @throws GeneralSecurityException
@@ -99,12 +99,42 @@ public class WobUtils {
    */
   public Walletobjects getClient() throws GeneralSecurityException,
       IOException {
-    credential = getCredential();
-
-    return new Walletobjects.Builder(httpTransport, jsonFactory, credential)
+    getTokenManager();
+    return new Walletobjects.Builder(httpTransport, jsonFactory,
+        WobMetrics.wrap(WobRateLimiter.forIssuer(issuerId).wrap(
+            new HttpRequestInitializer() {
+              @Override
+              public void initialize(HttpRequest request) throws IOException {
+                try {
+                  getTokenManager().initialize(request);
+                } catch (GeneralSecurityException e) {
+                  throw new IOException("Unable to load private key "
+                      + rsaKeyPath, e);
+                }
+              }
+            })))
         .setApplicationName(applicationName).build();
   }
 
+  /**
+   * Returns the token manager shared by all clients of this service account,
+   * creating it on first use and replacing it once the key is reloaded
+   *
+   * @return token manager for the service account
+   * @throws GeneralSecurityException
+   * @throws IOException
+   */
+  public WobTokenManager getTokenManager() throws GeneralSecurityException,
+      IOException {
+    RSAPrivateKey key = keys.getPrivateKey();
+    WobTokenManager manager = WobTokenManager.get(serviceAccountId);
+    if (manager == null || manager.getPrivateKey() != key) {
+      rsaKey = key;
+      manager = WobTokenManager.register(serviceAccountId, getCredential());
+    }
+    return manager;
+  }
+
   /**
    * Helper function to generate the Google Credential
    *
@@ -124,18 +154,14 @@ public class WobUtils {
   }
 
   /**
-   * Refreshes the access token and returns it
+   * Returns the shared access token, which is kept fresh in the background
    *
    * @return OAuth access token
    * @throws GeneralSecurityException
    * @throws IOException
    */
   public String accessToken() throws GeneralSecurityException, IOException {
-    if (credential == null) {
-      credential = getCredential();
-    }
-    credential.refreshToken();
-    return credential.getAccessToken();
+    return getTokenManager().getAccessToken();
   }
 
   public String generateWebserviceFailureResponseJwt (WebserviceResponse resp) throws
@@ -153,23 +179,15 @@ public class WobUtils {
    */
   public String generateWebserviceResponseJwt(GenericJson object,
       WebserviceResponse resp) throws SignatureException {
-
-    JsonToken token = new JsonToken(signer);
-    token.setAudience(GOOGLE);
-    token.setParam("typ", LOYALTY_WEB);
-    token.setIssuedAt(new Instant(
-        Calendar.getInstance().getTimeInMillis() - 5000L));
     WobPayload payload = new WobPayload();
 
     if (object != null) {
-      object.setFactory(new GsonFactory());
       payload.addObject(object);
     }
 
     payload.setResponse(resp);
-    JsonObject obj = gson.toJsonTree(payload).getAsJsonObject();
-    token.getPayloadAsJsonObject().add("payload", obj);
-    return token.serializeAndSign();
+    return serializeAndSign(LOYALTY_WEB,
+        Calendar.getInstance().getTimeInMillis() - 5000L, payload, null);
   }
 
   /**
@@ -189,25 +207,186 @@ public class WobUtils {
 
   public String generateSaveJwt(WobPayload payload, List<String> origins)
       throws SignatureException {
-    JsonToken token = new JsonToken(signer);
-    token.setAudience(GOOGLE);
-    token.setParam("typ", SAVE_TO_WALLET);
+    long issuedAt;
     try {
       if (origins.get(0).substring(0, 18).equals("http://thisisatest")) {
-        token.setIssuedAt(new Instant(0));
+        issuedAt = 0;
       } else {
-        token.setIssuedAt(new Instant(
-            Calendar.getInstance().getTimeInMillis() - 5000L));
+        issuedAt = Calendar.getInstance().getTimeInMillis() - 5000L;
       }
     } catch (StringIndexOutOfBoundsException e) {
-      token.setIssuedAt(new Instant(
-          Calendar.getInstance().getTimeInMillis() - 5000L));
+      issuedAt = Calendar.getInstance().getTimeInMillis() - 5000L;
+    }
+    return serializeAndSign(SAVE_TO_WALLET, issuedAt, payload, origins);
+  }
+
+  /**
+   * Writes the JWT claims, payload included, in one pass with a JsonGenerator
+   * and signs them. The claims are the same as those JsonToken produced: iss,
+   * aud, typ, iat, payload and origins.
+   *
+   * @param typ
+   * @param issuedAtMillis
+   * @param payload
+   * @param origins may be null for webservice responses
+   * @return signed JWT
+   * @throws SignatureException
+   */
+  private String serializeAndSign(String typ, long issuedAtMillis,
+      WobPayload payload, List<String> origins) throws SignatureException {
+    ByteArrayOutputStream claims = new ByteArrayOutputStream(1024);
+    try {
+      JsonGenerator generator =
+          jsonFactory.createJsonGenerator(claims, Charsets.UTF_8);
+      generator.writeStartObject();
+      generator.writeFieldName("iss");
+      generator.writeString(serviceAccountId);
+      generator.writeFieldName("aud");
+      generator.writeString(GOOGLE);
+      generator.writeFieldName("typ");
+      generator.writeString(typ);
+      generator.writeFieldName("iat");
+      generator.writeNumber(issuedAtMillis / 1000L);
+      generator.writeFieldName("payload");
+      payload.writeTo(generator);
+      if (origins != null) {
+        generator.writeFieldName("origins");
+        generator.writeStartArray();
+        for (String origin : origins) {
+          generator.writeString(origin);
+        }
+        generator.writeEndArray();
+      }
+      generator.writeEndObject();
+      generator.flush();
+    } catch (IOException e) {
+      throw new SignatureException(e);
     }
-    JsonObject obj = gson.toJsonTree(payload).getAsJsonObject();
-    token.getPayloadAsJsonObject().add("payload", obj);
-    token.getPayloadAsJsonObject().add("origins", gson.toJsonTree(origins));
-    return token.serializeAndSign();
+
+    String baseString = JWT_HEADER + "."
+        + Base64.encodeBase64URLSafeString(claims.toByteArray());
+    byte[] signature = sign(baseString.getBytes(Charsets.UTF_8));
+    return baseString + "." + Base64.encodeBase64URLSafeString(signature);
   }
+
+  /**
+   * Generates a Save to Wallet JWT for each payload, signing them in parallel
+   * on the signing pool
+   *
+   * @param payloads
+   * @param origins
+   * @return JWTs in the same order as the payloads
+   * @throws SignatureException
+   */
+  public List<String> signAll(final List<WobPayload> payloads,
+      final List<String> origins) throws SignatureException {
+    final int size = payloads.size();
+    final String[] jwts = new String[size];
+    int threads = Math.min(WobExecutors.signingThreads(), size);
+    if (threads <= 1) {
+      for (int i = 0; i < size; i++) {
+        jwts[i] = generateSaveJwt(payloads.get(i), origins);
+      }
+      return Arrays.asList(jwts);
+    }
+
+    // One slice per thread, rather than one task per payload
+    int slice = (size + threads - 1) / threads;
+    List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
+    for (int start = 0; start < size; start += slice) {
+      final int from = start;
+      final int to = Math.min(size, start + slice);
+      calls.add(new Callable<Void>() {
+        @Override
+        public Void call() throws SignatureException {
+          for (int i = from; i < to; i++) {
+            jwts[i] = generateSaveJwt(payloads.get(i), origins);
+          }
+          return null;
+        }
+      });
+    }
+
+    try {
+      for (Future<Void> future : WobExecutors.signing().invokeAll(calls)) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SignatureException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SignatureException) {
+        throw (SignatureException) e.getCause();
+      }
+      throw new SignatureException(e.getCause());
+    }
+    return Arrays.asList(jwts);
+  }
+
+  // Signs with the calling thread's Signature for the current key
+  private byte[] sign(byte[] content) throws SignatureException {
+    long start = System.nanoTime();
+    byte[] signature;
+    try {
+      signature = keys.sign(content);
+    } catch (IOException e) {
+      throw new SignatureException(e);
+    } catch (GeneralSecurityException e) {
+      throw new SignatureException(e);
+    }
+    recordSignature(System.nanoTime() - start);
+    return signature;
+  }
+
+  private static void recordSignature(long nanos) {
+    WobMetrics.signing().record(nanos, false);
+    firstSignatureMillis.compareAndSet(0, System.currentTimeMillis());
+    signatureCount.incrementAndGet();
+    signatureNanos.addAndGet(nanos);
+    long max = maxSignatureNanos.get();
+    while (nanos > max && !maxSignatureNanos.compareAndSet(max, nanos)) {
+      max = maxSignatureNanos.get();
+    }
+  }
+
+  /**
+   * @return number of JWTs signed by this process
+   */
+  public static long getSignatureCount() {
+    return signatureCount.get();
+  }
+
+  /**
+   * @return average time to sign one JWT in milliseconds
+   */
+  public static double getAverageSignatureMillis() {
+    long count = signatureCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    return signatureNanos.get() / (double) count
+        / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /**
+   * @return longest time taken to sign one JWT in milliseconds
+   */
+  public static double getMaxSignatureMillis() {
+    return maxSignatureNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /**
+   * @return JWTs signed per second since the first signature
+   */
+  public static double getSignaturesPerSecond() {
+    long first = firstSignatureMillis.get();
+    if (first == 0) {
+      return 0;
+    }
+    long elapsed = Math.max(1, System.currentTimeMillis() - first);
+    return signatureCount.get() * 1000.0 / elapsed;
+  }
+
   /**
    *
    * @param rfc3339
@@ -233,4 +412,14 @@ public class WobUtils {
   public String getIssuerId() {
     return issuerId;
   }
+
+  /**
+   * @return fingerprint of the private key JWTs are currently signed with
+   * @throws GeneralSecurityException
+   * @throws IOException
+   */
+  public String getKeyFingerprint() throws GeneralSecurityException,
+      IOException {
+    return keys.getFingerprint();
+  }
 }
@@ -0,0 +1,64 @@
+package com.google.java.wob.webservice;
+
+import java.util.UUID;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.services.walletobjects.model.Barcode;
+import com.google.api.services.walletobjects.model.LoyaltyObject;
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+
+/**
+ * Default webservice handler, which does not call out to an issuer system. The
+ * endpoint is not authenticated and there are no accounts to check a linking
+ * id against, so every link is rejected; an issuer that links accounts names
+ * its own handler in WEBSERVICE_HANDLER. Signups are approved once the user
+ * accepts the terms of service, with a loyalty object in the class
+ * issuerId.WEBSERVICE_CLASS_ID that has a new id as its account id and
+ * barcode.
+ *
+ */
+public class LoyaltyWebserviceHandler implements WebserviceHandler {
+  private static final String CLASS_ID =
+      System.getProperty("WEBSERVICE_CLASS_ID", "LoyaltyClass");
+
+  @Override
+  public GenericJson link(String issuerId, WebserviceParams params,
+      WebserviceResponse response) {
+    response.setResult("rejected");
+    response.setMessage(
+        "Linking an existing account is not available, please sign up instead.");
+    return null;
+  }
+
+  @Override
+  public GenericJson signup(String issuerId, WebserviceParams params,
+      WebserviceResponse response) {
+    if (!Boolean.TRUE.equals(params.getTosUserAcceptance())) {
+      response.setResult("rejected");
+      response.setMessage("Please accept the terms of service to sign up.");
+      return null;
+    }
+    return loyaltyObject(issuerId,
+        UUID.randomUUID().toString().replace("-", ""), params.getWalletUser());
+  }
+
+  private static LoyaltyObject loyaltyObject(String issuerId,
+      String accountId, WebserviceWalletUser user) {
+    LoyaltyObject object = new LoyaltyObject()
+        .setId(issuerId + "." + accountId.replaceAll("[^\\w.-]", "_"))
+        .setClassId(issuerId + "." + CLASS_ID).setVersion(1L)
+        .setState("active").setAccountId(accountId)
+        .setBarcode(new Barcode().setType("qrCode").setValue(accountId)
+            .setAlternateText(accountId));
+    if (user != null) {
+      String name = Joiner.on(' ').skipNulls().join(
+          Strings.emptyToNull(user.getFirstName()),
+          Strings.emptyToNull(user.getLastName()));
+      if (!name.isEmpty()) {
+        object.setAccountName(name);
+      }
+    }
+    return object;
+  }
+}
@@ -0,0 +1,44 @@
+package com.google.java.wob.webservice;
+
+import java.io.IOException;
+
+import com.google.api.client.json.GenericJson;
+
+/**
+ * Issuer logic behind the webservice endpoint. The class named by the
+ * WEBSERVICE_HANDLER property is used, LoyaltyWebserviceHandler by default; it
+ * needs a public no-argument constructor and is called concurrently. The
+ * endpoint is not authenticated, so link must check the linking id against the
+ * issuer's accounts before approving it.
+ *
+ * Each method gets a response whose result is already "approved". To turn the
+ * user away, set its result to "rejected", with a message for the user, and
+ * return null.
+ *
+ */
+public interface WebserviceHandler {
+
+  /**
+   * Links an account the user already has with the issuer.
+   *
+   * @param issuerId
+   * @param params linking id and the user's details
+   * @param response
+   * @return the loyalty object of the account, or null if it is rejected
+   * @throws IOException
+   */
+  GenericJson link(String issuerId, WebserviceParams params,
+      WebserviceResponse response) throws IOException;
+
+  /**
+   * Creates a new account for the user.
+   *
+   * @param issuerId
+   * @param params the user's details and consents
+   * @param response
+   * @return the loyalty object of the new account, or null if it is rejected
+   * @throws IOException
+   */
+  GenericJson signup(String issuerId, WebserviceParams params,
+      WebserviceResponse response) throws IOException;
+}
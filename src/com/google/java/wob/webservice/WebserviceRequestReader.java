@@ -0,0 +1,160 @@
+package com.google.java.wob.webservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import com.google.common.base.Charsets;
+
+/**
+ * Reads a webservice request straight from the request body, one token at a
+ * time, without building a tree or reflecting over the model classes. Unknown
+ * fields are skipped.
+ *
+ */
+public class WebserviceRequestReader {
+  private final JsonFactory jsonFactory;
+
+  public WebserviceRequestReader(JsonFactory jsonFactory) {
+    this.jsonFactory = jsonFactory;
+  }
+
+  /**
+   * @param content UTF-8 JSON of the request, which is not closed
+   * @return the request
+   * @throws IOException if the content is not a JSON object
+   */
+  public WebserviceRequest read(InputStream content) throws IOException {
+    JsonParser parser = jsonFactory.createJsonParser(content, Charsets.UTF_8);
+    WebserviceRequest request = new WebserviceRequest();
+    try {
+      startObject(parser, parser.nextToken());
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if ("apiVersion".equals(field)) {
+          request.setApiVersion(text(parser, token));
+        } else if ("method".equals(field)) {
+          request.setMethod(text(parser, token));
+        } else if ("params".equals(field) && token != JsonToken.VALUE_NULL) {
+          request.setParams(readParams(parser, token));
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } finally {
+      parser.close();
+    }
+    return request;
+  }
+
+  private static WebserviceParams readParams(JsonParser parser, JsonToken start)
+      throws IOException {
+    startObject(parser, start);
+    WebserviceParams params = new WebserviceParams();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      if ("linkingId".equals(field)) {
+        params.setLinkingId(text(parser, token));
+      } else if ("walletUser".equals(field) && token != JsonToken.VALUE_NULL) {
+        params.setWalletUser(readWalletUser(parser, token));
+      } else if ("promotionalEmailOptIn".equals(field)) {
+        params.setPromotionalEmailOptIn(bool(parser, token));
+      } else if ("tosUserAcceptance".equals(field)) {
+        params.setTosUserAcceptance(bool(parser, token));
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return params;
+  }
+
+  private static WebserviceWalletUser readWalletUser(JsonParser parser,
+      JsonToken start) throws IOException {
+    startObject(parser, start);
+    WebserviceWalletUser user = new WebserviceWalletUser();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      if (token == JsonToken.START_ARRAY) {
+        if ("userModifiedFields".equals(field)) {
+          List<String> fields = new ArrayList<String>();
+          while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            fields.add(text(parser, token));
+          }
+          user.setUserModifiedFields(fields);
+        } else {
+          parser.skipChildren();
+        }
+        continue;
+      } else if (token == JsonToken.START_OBJECT) {
+        parser.skipChildren();
+        continue;
+      }
+
+      String value = text(parser, token);
+      if ("firstName".equals(field)) {
+        user.setFirstName(value);
+      } else if ("middleName".equals(field)) {
+        user.setMiddleName(value);
+      } else if ("lastName".equals(field)) {
+        user.setLastName(value);
+      } else if ("streetAddress".equals(field)) {
+        user.setStreetAddress(value);
+      } else if ("city".equals(field)) {
+        user.setCity(value);
+      } else if ("state".equals(field)) {
+        user.setState(value);
+      } else if ("zipcode".equals(field)) {
+        user.setZipcode(value);
+      } else if ("country".equals(field)) {
+        user.setCountry(value);
+      } else if ("email".equals(field)) {
+        user.setEmail(value);
+      } else if ("phone".equals(field)) {
+        user.setPhone(value);
+      } else if ("gender".equals(field)) {
+        user.setGender(value);
+      } else if ("birthday".equals(field)) {
+        user.setBirthday(value);
+      }
+    }
+    return user;
+  }
+
+  private static void startObject(JsonParser parser, JsonToken token)
+      throws IOException {
+    if (token != JsonToken.START_OBJECT) {
+      throw new IOException("Expected an object at " + parser.getCurrentName()
+          + " but found " + token);
+    }
+  }
+
+  // Text of a scalar, or null for null or a nested value, which is skipped
+  private static String text(JsonParser parser, JsonToken token)
+      throws IOException {
+    if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+      parser.skipChildren();
+      return null;
+    }
+    return token == JsonToken.VALUE_NULL ? null : parser.getText();
+  }
+
+  // A boolean, or null for anything else
+  private static Boolean bool(JsonParser parser, JsonToken token)
+      throws IOException {
+    if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+      parser.skipChildren();
+    } else if (token == JsonToken.VALUE_TRUE) {
+      return Boolean.TRUE;
+    } else if (token == JsonToken.VALUE_FALSE) {
+      return Boolean.FALSE;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.walletobjects.Walletobjects;
+import com.google.api.services.walletobjects.WalletobjectsRequest;
+import com.google.api.services.walletobjects.model.LoyaltyObject;
+import com.google.java.wob.utils.WobFakeTransport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.Map;
+
+public class BatchRunnerTest {
+  private static final String ISSUER_ID = "1234";
+
+  private final JsonFactory jsonFactory = new GsonFactory();
+  private Walletobjects client;
+  private StringWriter out;
+  private BatchRunner runner;
+
+  @Before
+  public void setUp() {
+    client = new Walletobjects.Builder(new WobFakeTransport(0, 0, 0, 503), jsonFactory, null)
+        .setApplicationName("test").build();
+    out = new StringWriter();
+    runner = new BatchRunner(client, ISSUER_ID, new PrintWriter(out));
+  }
+
+  @Test
+  public void writesOneLinePerItemAndASummary() throws Exception {
+    runner.add(insert(1, "a"));
+    BatchRunner.Item invalid = insert(2, "b");
+    invalid.error = "Invalid JSON";
+    runner.add(invalid);
+    runner.add(update(3, "missing"));
+    GenericJson summary = runner.finish();
+
+    String[] lines = out.toString().split("\n");
+    assertEquals(4, lines.length);
+
+    GenericJson saved = parse(lines[0]);
+    assertEquals(1, number(saved, "line"));
+    assertEquals(ISSUER_ID + ".a", saved.get("id"));
+    assertEquals(1, number(saved, "version"));
+
+    GenericJson notSent = parse(lines[1]);
+    assertEquals(2, number(notSent, "line"));
+    assertEquals("Invalid JSON", notSent.get("error"));
+
+    GenericJson notFound = parse(lines[2]);
+    assertEquals(3, number(notFound, "line"));
+    assertTrue(lines[2], ((String) notFound.get("error")).startsWith("404 "));
+
+    assertEquals(jsonFactory.toString(summary), lines[3]);
+    Map<?, ?> counts = (Map<?, ?>) summary.get("summary");
+    assertEquals(3, counts.get("items"));
+    assertEquals(1, counts.get("succeeded"));
+    assertEquals(2, counts.get("failed"));
+    assertEquals(0, counts.get("unknown"));
+    assertEquals(1, counts.get("batches"));
+  }
+
+  @Test
+  public void keepsTheOrderOfItemsAcrossBatches() throws Exception {
+    int count = 3 * Integer.getInteger("BATCH_SIZE", 50) + 1;
+    for (int i = 1; i <= count; i++) {
+      runner.add(insert(i, "order" + i));
+    }
+    Map<?, ?> counts = (Map<?, ?>) runner.finish().get("summary");
+
+    String[] lines = out.toString().split("\n");
+    assertEquals(count + 1, lines.length);
+    for (int i = 1; i <= count; i++) {
+      GenericJson result = parse(lines[i - 1]);
+      assertEquals(i, number(result, "line"));
+      assertEquals(ISSUER_ID + ".order" + i, result.get("id"));
+    }
+    assertEquals(count, counts.get("succeeded"));
+    assertEquals(4, counts.get("batches"));
+  }
+
+  private static BatchRunner.Item insert(int line, String name) {
+    final LoyaltyObject object = new LoyaltyObject().setId(ISSUER_ID + "." + name)
+        .setClassId(ISSUER_ID + ".LoyaltyClass").setVersion(1L);
+    return new BatchRunner.Item(line, object.getId()) {
+      @Override
+      WalletobjectsRequest<? extends GenericJson> request(Walletobjects client)
+          throws IOException {
+        return client.loyaltyobject().insert(object);
+      }
+    };
+  }
+
+  private static BatchRunner.Item update(int line, String name) {
+    final LoyaltyObject object = new LoyaltyObject().setId(ISSUER_ID + "." + name)
+        .setClassId(ISSUER_ID + ".LoyaltyClass").setVersion(2L);
+    return new BatchRunner.Item(line, object.getId()) {
+      @Override
+      WalletobjectsRequest<? extends GenericJson> request(Walletobjects client)
+          throws IOException {
+        return client.loyaltyobject().update(object.getId(), object);
+      }
+    };
+  }
+
+  private GenericJson parse(String line) throws IOException {
+    return jsonFactory.fromString(line, GenericJson.class);
+  }
+
+  private static int number(GenericJson json, String name) {
+    return ((BigDecimal) json.get(name)).intValueExact();
+  }
+}
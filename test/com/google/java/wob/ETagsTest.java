@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.services.walletobjects.model.LoyaltyObject;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class ETagsTest {
+  private static final List<GenericJson> RESOURCES = Arrays.<GenericJson>asList(
+      object("1234.a", 1), object("1234.b", 3));
+
+  @Test
+  public void tagIsWeakAndDependsOnlyOnIdsAndVersions() {
+    String etag = ETags.of(RESOURCES, null);
+    assertTrue(etag, etag.matches("W/\"[0-9a-f]{32}\""));
+
+    List<GenericJson> sameVersions = Arrays.<GenericJson>asList(
+        object("1234.a", 1).setAccountName("changed"), object("1234.b", 3));
+    assertEquals(etag, ETags.of(sameVersions, null));
+  }
+
+  @Test
+  public void tagChangesWithVersionOrderAndPageToken() {
+    String etag = ETags.of(RESOURCES, null);
+    assertNotEquals(etag, ETags.of(
+        Arrays.<GenericJson>asList(object("1234.a", 2), object("1234.b", 3)), null));
+    assertNotEquals(etag, ETags.of(
+        Arrays.<GenericJson>asList(object("1234.b", 3), object("1234.a", 1)), null));
+    assertNotEquals(etag, ETags.of(RESOURCES, "next"));
+    assertNotEquals(etag, ETags.of(Collections.<GenericJson>emptyList(), null));
+  }
+
+  @Test
+  public void matchingRequestsGetNotModified() {
+    String etag = ETags.of(RESOURCES, null);
+    String opaque = etag.substring(2);
+    String[] matching = {etag, opaque, "*", "W/\"other\", " + etag, "\"other\"," + opaque};
+    for (String ifNoneMatch : matching) {
+      HttpServletResponse resp = mock(HttpServletResponse.class);
+      assertTrue(ifNoneMatch, ETags.notModified(request(ifNoneMatch), resp, etag));
+      verify(resp).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      verify(resp).setHeader("ETag", etag);
+    }
+  }
+
+  @Test
+  public void otherRequestsGetTheTagOnly() {
+    String etag = ETags.of(RESOURCES, null);
+    String[] other = {null, "", "W/\"other\"", ETags.of(RESOURCES, "next")};
+    for (String ifNoneMatch : other) {
+      HttpServletResponse resp = mock(HttpServletResponse.class);
+      assertFalse(ifNoneMatch, ETags.notModified(request(ifNoneMatch), resp, etag));
+      verify(resp, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      verify(resp).setHeader("ETag", etag);
+      verify(resp).setHeader("Cache-Control", "private, no-cache");
+    }
+  }
+
+  private static LoyaltyObject object(String id, long version) {
+    return new LoyaltyObject().setId(id).setVersion(version);
+  }
+
+  private static HttpServletRequest request(String ifNoneMatch) {
+    HttpServletRequest req = mock(HttpServletRequest.class);
+    when(req.getHeader("If-None-Match")).thenReturn(ifNoneMatch);
+    return req;
+  }
+}
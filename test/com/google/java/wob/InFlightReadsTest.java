@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.json.GenericJson;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class InFlightReadsTest {
+
+  @Test
+  public void concurrentReadsShareOneFetch() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final InFlightReads.Response response = response();
+    final long coalesced = InFlightReads.getCoalescedCount();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<InFlightReads.Response> first = executor.submit(
+          new Callable<InFlightReads.Response>() {
+            @Override
+            public InFlightReads.Response call() throws IOException {
+              return InFlightReads.fetch("shared", new Callable<InFlightReads.Response>() {
+                @Override
+                public InFlightReads.Response call() throws InterruptedException {
+                  started.countDown();
+                  release.await();
+                  return response;
+                }
+              });
+            }
+          });
+      started.await();
+      assertEquals(1, InFlightReads.getInFlightCount());
+
+      // Lets the fetch finish once the second read below is waiting for it
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            while (InFlightReads.getCoalescedCount() == coalesced) {
+              Thread.sleep(1);
+            }
+          } catch (InterruptedException e) {
+            return;
+          }
+          release.countDown();
+        }
+      }.start();
+      InFlightReads.Response second = InFlightReads.fetch("shared", unexpected());
+
+      assertSame(response, first.get(5, TimeUnit.SECONDS));
+      assertSame(response, second);
+      assertEquals(coalesced + 1, InFlightReads.getCoalescedCount());
+      assertEquals(0, InFlightReads.getInFlightCount());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void finishedFetchesAreNotShared() throws Exception {
+    InFlightReads.Response first = InFlightReads.fetch("sequential", constant(response()));
+    InFlightReads.Response second = InFlightReads.fetch("sequential", constant(response()));
+    assertNotSame(first, second);
+    assertEquals(0, InFlightReads.getInFlightCount());
+  }
+
+  @Test
+  public void failuresAreThrownAndNotKept() throws Exception {
+    try {
+      InFlightReads.fetch("failing", new Callable<InFlightReads.Response>() {
+        @Override
+        public InFlightReads.Response call() throws IOException {
+          throw new IOException("upstream");
+        }
+      });
+      fail();
+    } catch (IOException e) {
+      assertEquals("upstream", e.getMessage());
+    }
+
+    InFlightReads.Response response = response();
+    assertSame(response, InFlightReads.fetch("failing", constant(response)));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void runtimeExceptionsAreThrownUnwrapped() throws Exception {
+    InFlightReads.fetch("unchecked", new Callable<InFlightReads.Response>() {
+      @Override
+      public InFlightReads.Response call() {
+        throw new IllegalStateException();
+      }
+    });
+  }
+
+  private static InFlightReads.Response response() throws IOException {
+    return InFlightReads.Response.object("test", null, new GenericJson());
+  }
+
+  private static Callable<InFlightReads.Response> constant(final InFlightReads.Response response) {
+    return new Callable<InFlightReads.Response>() {
+      @Override
+      public InFlightReads.Response call() {
+        return response;
+      }
+    };
+  }
+
+  private static Callable<InFlightReads.Response> unexpected() {
+    return new Callable<InFlightReads.Response>() {
+      @Override
+      public InFlightReads.Response call() {
+        throw new AssertionError("Fetched again while the first fetch was in flight");
+      }
+    };
+  }
+}
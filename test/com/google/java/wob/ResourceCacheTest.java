@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.google.api.client.json.GenericJson;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+public class ResourceCacheTest {
+  private static final List<GenericJson> NONE = Collections.emptyList();
+
+  @Test
+  public void listIsCachedUntilTheIssuerSaves() {
+    long generation = ResourceCache.generation("cache-saves");
+    ResourceCache.putList("cache-saves", "classlist", NONE, null, generation);
+    assertNotNull(ResourceCache.getList("cache-saves", "classlist"));
+
+    ResourceCache.updateAll("cache-saves", NONE);
+    assertNull(ResourceCache.getList("cache-saves", "classlist"));
+    assertEquals(generation + 1, ResourceCache.generation("cache-saves"));
+  }
+
+  @Test
+  public void listRequestedBeforeASaveIsNotCached() {
+    long generation = ResourceCache.generation("cache-stale");
+    ResourceCache.updateAll("cache-stale", NONE);
+    ResourceCache.putList("cache-stale", "classlist", NONE, null, generation);
+    assertNull(ResourceCache.getList("cache-stale", "classlist"));
+  }
+}
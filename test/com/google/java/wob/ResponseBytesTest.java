@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.java.wob;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.api.client.json.GenericJson;
+import com.google.common.io.ByteStreams;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class ResponseBytesTest {
+
+  @Test
+  public void acceptsGzipUnlessRefused() {
+    assertTrue(ResponseBytes.acceptsGzip("gzip"));
+    assertTrue(ResponseBytes.acceptsGzip("deflate, GZIP"));
+    assertTrue(ResponseBytes.acceptsGzip("gzip;q=0.5"));
+    assertTrue(ResponseBytes.acceptsGzip("*"));
+    assertTrue(ResponseBytes.acceptsGzip("br, gzip ; q=1.0"));
+
+    assertFalse(ResponseBytes.acceptsGzip(null));
+    assertFalse(ResponseBytes.acceptsGzip(""));
+    assertFalse(ResponseBytes.acceptsGzip("identity"));
+    assertFalse(ResponseBytes.acceptsGzip("deflate, br"));
+    assertFalse(ResponseBytes.acceptsGzip("gzip;q=0"));
+    assertFalse(ResponseBytes.acceptsGzip("gzip; q=0.000"));
+    assertFalse(ResponseBytes.acceptsGzip("*;q=0"));
+  }
+
+  @Test
+  public void gzipIsOnlyWrittenToRequestsThatAcceptIt() throws Exception {
+    ResponseBytes response = ResponseBytes.array("test:gzip", "W/\"1\"", resources(100));
+
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    HttpServletResponse plainResp = response(plain);
+    response.write(request(null), plainResp);
+    verify(plainResp).setHeader("Vary", "Accept-Encoding");
+    verify(plainResp, never()).setHeader("Content-Encoding", "gzip");
+    verify(plainResp).setContentLength(plain.size());
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    HttpServletResponse gzipResp = response(compressed);
+    response.write(request("gzip, deflate"), gzipResp);
+    verify(gzipResp).setHeader("Vary", "Accept-Encoding");
+    verify(gzipResp).setHeader("Content-Encoding", "gzip");
+    verify(gzipResp).setContentLength(compressed.size());
+
+    assertTrue(compressed.size() < plain.size());
+    assertArrayEquals(plain.toByteArray(), gunzip(compressed.toByteArray()));
+  }
+
+  @Test
+  public void cachedResponsesAreReusedWhileTheTagMatches() throws Exception {
+    ResponseBytes first = ResponseBytes.array("test:cached", "W/\"1\"", resources(100));
+    first.write(request("gzip"), response(new ByteArrayOutputStream()));
+
+    // Compressing replaces the cached response with one that has the gzip copy
+    ResponseBytes cached = ResponseBytes.array("test:cached", "W/\"1\"", resources(1));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    cached.write(request(null), response(out));
+    assertEquals(json(resources(100)), out.toString("UTF-8"));
+    assertSame(cached, ResponseBytes.array("test:cached", "W/\"1\"", resources(1)));
+
+    ResponseBytes changed = ResponseBytes.array("test:cached", "W/\"2\"", resources(1));
+    out = new ByteArrayOutputStream();
+    changed.write(request(null), response(out));
+    assertEquals(json(resources(1)), out.toString("UTF-8"));
+  }
+
+  @Test
+  public void smallResponsesAreNotCompressed() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HttpServletResponse resp = response(out);
+    ResponseBytes.of("{}").write(request("gzip"), resp);
+    verify(resp, never()).setHeader("Vary", "Accept-Encoding");
+    verify(resp, never()).setHeader("Content-Encoding", "gzip");
+    assertEquals("{}", out.toString("UTF-8"));
+  }
+
+  @Test
+  public void notModifiedVariesByEncoding() {
+    HttpServletRequest req = request("gzip");
+    when(req.getHeader("If-None-Match")).thenReturn("W/\"1\"");
+    HttpServletResponse resp = mock(HttpServletResponse.class);
+    assertTrue(ETags.notModified(req, resp, "W/\"1\""));
+    verify(resp).setHeader("Vary", "Accept-Encoding");
+  }
+
+  private static List<GenericJson> resources(int count) {
+    List<GenericJson> resources = new ArrayList<GenericJson>();
+    for (int i = 0; i < count; i++) {
+      GenericJson resource = new GenericJson();
+      resource.put("id", "1234.object" + i);
+      resource.put("version", i);
+      resources.add(resource);
+    }
+    return resources;
+  }
+
+  private static String json(List<GenericJson> resources) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ResponseBytes.array("test:json", null, resources).write(request(null), response(out));
+    return out.toString("UTF-8");
+  }
+
+  private static HttpServletRequest request(String acceptEncoding) {
+    HttpServletRequest req = mock(HttpServletRequest.class);
+    when(req.getHeader("Accept-Encoding")).thenReturn(acceptEncoding);
+    return req;
+  }
+
+  private static HttpServletResponse response(final ByteArrayOutputStream out)
+      throws IOException {
+    HttpServletResponse resp = mock(HttpServletResponse.class);
+    when(resp.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        out.write(b);
+      }
+    });
+    return resp;
+  }
+
+  private static byte[] gunzip(byte[] gzip) throws IOException {
+    return ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(gzip)));
+  }
+}
@@ -0,0 +1,84 @@
+package com.google.java.wob.utils;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class WobExecutorsTest {
+
+  @After
+  public void tearDown() {
+    WobExecutors.endRequest();
+  }
+
+  @Test
+  public void poolsAreSharedOutsideARequest() {
+    assertSame(WobExecutors.upstream(), WobExecutors.upstream());
+    assertSame(WobExecutors.signing(), WobExecutors.signing());
+    assertNotSame(WobExecutors.upstream(), WobExecutors.signing());
+  }
+
+  @Test
+  public void requestsGetTheirOwnPools() throws Exception {
+    ExecutorService shared = WobExecutors.upstream();
+    WobExecutors.beginRequest();
+    final ExecutorService upstream = WobExecutors.upstream();
+    assertNotSame(shared, upstream);
+    assertSame(upstream, WobExecutors.upstream());
+
+    // Calls made from the pool's threads use the same request's pools
+    ExecutorService nested = upstream.submit(new Callable<ExecutorService>() {
+      @Override
+      public ExecutorService call() {
+        return WobExecutors.upstream();
+      }
+    }).get(5, TimeUnit.SECONDS);
+    assertSame(upstream, nested);
+
+    WobExecutors.endRequest();
+    assertTrue(upstream.isShutdown());
+    assertSame(shared, WobExecutors.upstream());
+    assertFalse(shared.isShutdown());
+  }
+
+  @Test
+  public void webserviceRejectsWhenEveryThreadIsBusy() throws Exception {
+    WobExecutors.beginRequest();
+    ExecutorService webservice = WobExecutors.webservice();
+    final CountDownLatch release = new CountDownLatch(1);
+    Runnable blocked = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    try {
+      // Default of WEBSERVICE_THREADS
+      for (int i = 0; i < 8; i++) {
+        webservice.execute(blocked);
+      }
+      try {
+        webservice.execute(blocked);
+        fail("Expected the busy pool to reject the task");
+      } catch (RejectedExecutionException expected) {
+      }
+    } finally {
+      release.countDown();
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package com.google.java.wob.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.java.wob.utils.WobMetrics.Histogram;
+
+public class WobMetricsTest {
+
+  @Test
+  public void smallValuesHaveABucketEach() {
+    for (int i = 0; i < 16; i++) {
+      assertEquals(i, Histogram.index(i));
+      assertEquals(i, Histogram.highest(i));
+    }
+  }
+
+  @Test
+  public void everyValueFallsWithinItsBucket() {
+    long[] values = {16, 17, 31, 32, 33, 1000, 1023, 1024, 123456789L,
+        Long.MAX_VALUE / 2, Long.MAX_VALUE};
+    for (long value : values) {
+      int index = Histogram.index(value);
+      assertTrue(value + " above its bucket", value <= Histogram.highest(index));
+      assertTrue(value + " below its bucket",
+          value > Histogram.highest(index - 1));
+    }
+  }
+
+  @Test
+  public void bucketsAreContiguous() {
+    int last = Histogram.index(Long.MAX_VALUE);
+    assertEquals(Long.MAX_VALUE, Histogram.highest(last));
+    for (int i = 0; i < last; i++) {
+      long next = Histogram.highest(i) + 1;
+      assertEquals(i + 1, Histogram.index(next));
+    }
+  }
+
+  @Test
+  public void bucketsAreWithinOneSixteenth() {
+    for (int i = 16; i < Histogram.index(Long.MAX_VALUE); i++) {
+      long lowest = Histogram.highest(i - 1) + 1;
+      long width = Histogram.highest(i) - lowest + 1;
+      assertTrue("bucket " + i, width * 16 <= lowest);
+    }
+  }
+
+  @Test
+  public void quantilesAreTheHighestValueOfTheirBucket() {
+    Histogram histogram = new Histogram();
+    assertEquals(0, histogram.getQuantileSeconds(0.99), 0);
+
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(i), i == 100);
+    }
+    assertEquals(100, histogram.getCount());
+    assertEquals(1, histogram.getErrors());
+    assertEquals(5.05, histogram.getTotalSeconds(), 1e-9);
+
+    double p50 = histogram.getQuantileSeconds(0.5);
+    assertEquals(Histogram.highest(Histogram.index(50000)) / 1e6, p50, 0);
+    assertTrue(p50 >= 0.050 && p50 < 0.050 * 17 / 16);
+    double max = histogram.getQuantileSeconds(1);
+    assertTrue(max >= 0.100 && max < 0.100 * 17 / 16);
+  }
+
+  @Test
+  public void countAboveLeavesOutTheBucketOfTheThreshold() {
+    Histogram histogram = new Histogram();
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(500), false);
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(1000), false);
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(2000), false);
+    assertEquals(1, histogram.getCountAbove(1.0));
+    assertEquals(2, histogram.getCountAbove(0.5));
+    assertEquals(0, histogram.getCountAbove(10));
+  }
+
+  @Test
+  public void negativeLatenciesCountAsZero() {
+    Histogram histogram = new Histogram();
+    histogram.record(-5, false);
+    assertEquals(0, histogram.getQuantileSeconds(1), 0);
+    assertEquals(1, histogram.getCount());
+  }
+}
@@ -0,0 +1,72 @@
+package com.google.java.wob.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.walletobjects.model.BoardingPassClass;
+import com.google.api.services.walletobjects.model.BoardingPassObject;
+import com.google.api.services.walletobjects.model.GenericClass;
+import com.google.api.services.walletobjects.model.GenericObject;
+import com.google.api.services.walletobjects.model.LoyaltyClass;
+import com.google.api.services.walletobjects.model.LoyaltyObject;
+import com.google.api.services.walletobjects.model.OfferClass;
+import com.google.api.services.walletobjects.model.OfferObject;
+import com.google.java.wob.webservice.WebserviceResponse;
+
+public class WobPayloadTest {
+
+  @Test
+  public void addObjectRoutesEachModelToItsList() {
+    WobPayload payload = new WobPayload();
+    GenericJson[] resources = {
+        new LoyaltyClass(), new OfferClass(), new GenericClass(),
+        new BoardingPassClass(), new LoyaltyObject(), new OfferObject(),
+        new GenericObject(), new BoardingPassObject()};
+    for (GenericJson resource : resources) {
+      payload.addObject(resource);
+    }
+
+    List<List<GenericJson>> lists = Arrays.asList(
+        payload.getLoyaltyClasses(), payload.getOfferClasses(),
+        payload.getGenericClasses(), payload.getBoardingPassClasses(),
+        payload.getLoyaltyObjects(), payload.getOfferObjects(),
+        payload.getGenericObjects(), payload.getBoardingPassObjects());
+    for (int i = 0; i < resources.length; i++) {
+      assertEquals(1, lists.get(i).size());
+      assertSame(resources[i], lists.get(i).get(0));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void addObjectRejectsUnknownTypes() {
+    new WobPayload().addObject(new GenericJson());
+  }
+
+  @Test
+  public void writeToKeepsTheFieldNames() throws Exception {
+    WobPayload payload = new WobPayload();
+    payload.addObject(new LoyaltyObject().setId("1234.obj"));
+    payload.setResponse(new WebserviceResponse(null, "approved"));
+
+    StringWriter out = new StringWriter();
+    JsonGenerator generator = new GsonFactory().createJsonGenerator(out);
+    payload.writeTo(generator);
+    generator.flush();
+
+    String json = out.toString();
+    assertTrue(json, json.contains("\"loyaltyObjects\":[{\"id\":\"1234.obj\"}]"));
+    assertTrue(json, json.contains("\"offerObjects\":[]"));
+    assertTrue(json,
+        json.endsWith("\"webserviceResponse\":{\"result\":\"approved\"}}"));
+  }
+}
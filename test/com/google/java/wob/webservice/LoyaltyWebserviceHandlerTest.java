@@ -0,0 +1,50 @@
+package com.google.java.wob.webservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.services.walletobjects.model.LoyaltyObject;
+
+public class LoyaltyWebserviceHandlerTest {
+  private final LoyaltyWebserviceHandler handler =
+      new LoyaltyWebserviceHandler();
+
+  @Test
+  public void rejectsEveryLink() {
+    WebserviceParams params = new WebserviceParams();
+    params.setLinkingId("member1");
+    WebserviceResponse response = new WebserviceResponse(null, "approved");
+
+    assertNull(handler.link("1234", params, response));
+    assertEquals("rejected", response.getResult());
+  }
+
+  @Test
+  public void rejectsSignupsWithoutTheTerms() {
+    WebserviceResponse response = new WebserviceResponse(null, "approved");
+    assertNull(handler.signup("1234", new WebserviceParams(), response));
+    assertEquals("rejected", response.getResult());
+  }
+
+  @Test
+  public void approvesSignupsWithANewAccount() {
+    WebserviceParams params = new WebserviceParams();
+    params.setTosUserAcceptance(true);
+    WebserviceWalletUser user = new WebserviceWalletUser();
+    user.setFirstName("Ana");
+    user.setLastName("Lee");
+    params.setWalletUser(user);
+    WebserviceResponse response = new WebserviceResponse(null, "approved");
+
+    GenericJson result = handler.signup("1234", params, response);
+    assertEquals("approved", response.getResult());
+    LoyaltyObject object = (LoyaltyObject) result;
+    assertEquals("1234." + object.getAccountId(), object.getId());
+    assertEquals("1234.LoyaltyClass", object.getClassId());
+    assertEquals("Ana Lee", object.getAccountName());
+    assertEquals(object.getAccountId(), object.getBarcode().getValue());
+  }
+}
@@ -0,0 +1,110 @@
+package com.google.java.wob.webservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.common.base.Charsets;
+
+public class WebserviceRequestReaderTest {
+  private final WebserviceRequestReader reader =
+      new WebserviceRequestReader(new GsonFactory());
+
+  @Test
+  public void readsEveryField() throws IOException {
+    WebserviceRequest request = read("{'apiVersion': '1.0', 'method': 'signup',"
+        + " 'params': {'linkingId': 'member1', 'promotionalEmailOptIn': false,"
+        + " 'tosUserAcceptance': true, 'walletUser': {'firstName': 'Ana',"
+        + " 'middleName': 'B', 'lastName': 'Lee', 'streetAddress': '1 Main St',"
+        + " 'city': 'Springfield', 'state': 'IL', 'zipcode': '62701',"
+        + " 'country': 'US', 'email': 'ana@example.com', 'phone': '555-0100',"
+        + " 'gender': 'female', 'birthday': '1980-01-01',"
+        + " 'userModifiedFields': ['email', 'phone']}}}");
+
+    assertEquals("1.0", request.getApiVersion());
+    assertEquals("signup", request.getMethod());
+    WebserviceParams params = request.getParams();
+    assertEquals("member1", params.getLinkingId());
+    assertEquals(Boolean.FALSE, params.getPromotionalEmailOptIn());
+    assertEquals(Boolean.TRUE, params.getTosUserAcceptance());
+    WebserviceWalletUser user = params.getWalletUser();
+    assertEquals("Ana", user.getFirstName());
+    assertEquals("B", user.getMiddleName());
+    assertEquals("Lee", user.getLastName());
+    assertEquals("1 Main St", user.getStreetAddress());
+    assertEquals("Springfield", user.getCity());
+    assertEquals("IL", user.getState());
+    assertEquals("62701", user.getZipcode());
+    assertEquals("US", user.getCountry());
+    assertEquals("ana@example.com", user.getEmail());
+    assertEquals("555-0100", user.getPhone());
+    assertEquals("female", user.getGender());
+    assertEquals("1980-01-01", user.getBirthday());
+    assertEquals(Arrays.asList("email", "phone"), user.getUserModifiedFields());
+  }
+
+  @Test
+  public void skipsUnknownFields() throws IOException {
+    WebserviceRequest request = read("{'extra': {'nested': [1, {'a': 2}]},"
+        + " 'method': 'link', 'params': {'other': [true], 'linkingId': 'm2',"
+        + " 'walletUser': {'address': {'line': 1}, 'tags': ['a'],"
+        + " 'firstName': 'Bo'}}, 'trailing': null}");
+
+    assertEquals("link", request.getMethod());
+    assertEquals("m2", request.getParams().getLinkingId());
+    assertEquals("Bo", request.getParams().getWalletUser().getFirstName());
+    assertNull(request.getParams().getWalletUser().getUserModifiedFields());
+  }
+
+  @Test
+  public void nullsAndMistypedValuesAreLeftOut() throws IOException {
+    WebserviceRequest request = read("{'method': null, 'params': {"
+        + " 'linkingId': {'id': 1}, 'tosUserAcceptance': 'yes',"
+        + " 'promotionalEmailOptIn': null, 'walletUser': null}}");
+
+    assertNull(request.getMethod());
+    WebserviceParams params = request.getParams();
+    assertNull(params.getLinkingId());
+    assertNull(params.getTosUserAcceptance());
+    assertNull(params.getPromotionalEmailOptIn());
+    assertNull(params.getWalletUser());
+  }
+
+  @Test
+  public void numbersAreReadAsText() throws IOException {
+    assertEquals("12345",
+        read("{'params': {'linkingId': 12345}}").getParams().getLinkingId());
+  }
+
+  @Test
+  public void nullParamsAreLeftOut() throws IOException {
+    assertNull(read("{'method': 'link', 'params': null}").getParams());
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsAnArray() throws IOException {
+    read("[]");
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsParamsThatAreNotAnObject() throws IOException {
+    read("{'method': 'link', 'params': 'member1'}");
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsAnEmptyBody() throws IOException {
+    read("");
+  }
+
+  // Single quotes keep the JSON readable; they are swapped for double quotes
+  private WebserviceRequest read(String json) throws IOException {
+    return reader.read(new ByteArrayInputStream(
+        json.replace('\'', '"').getBytes(Charsets.UTF_8)));
+  }
+}
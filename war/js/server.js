@@ -122,7 +122,8 @@
     if (server.issuerId != undefined && server.issuerId !== '') {
       callback = function() {
         // Load and create classes
-        $.getJSON('/classlist?issuerId=' + server.issuerId, function(data) {
+        $.getJSON('/classlist?issuerId=' + server.issuerId,
+          function(data, status, xhr) {
           ui.setUpTabs(true);
           if (data === null) {
             // Null data means we could not retrieve a client
@@ -139,6 +140,12 @@
             return;
           }
           page.createClasses(data);
+          // Some kinds of class could not be listed, the rest were loaded
+          var failedKinds = xhr.getResponseHeader('X-Wob-Failed-Kinds');
+          if (failedKinds) {
+            alert('Unable to load ' + failedKinds.split(',').join(', ') +
+              ' classes, please refresh and try again');
+          }
         });
       }
     } else {